@@ -0,0 +1,136 @@
+package androidhttpweb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One structured line per request (method, path, status, bytes, duration),
+ * written to {@link ServerLog} by a background thread. Request threads only
+ * claim a slot of a fixed ring with a CAS and fill it in; when the writer
+ * falls behind the ring fills up and entries are dropped and counted,
+ * never waited for.
+ */
+final class AccessLog implements Runnable {
+
+    private static final String TAG = "AccessLog";
+    private static final long IDLE_NANOS = 50 * 1000 * 1000L;
+
+    private static final class Entry {
+
+        //slot index while free, claiming position + 1 once filled in
+        volatile long sequence;
+        long time;
+        String method;
+        String path;
+        String status;
+        long bytes;
+        long nanos;
+    }
+
+    private final Entry[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder line = new StringBuilder(128);
+    private long head;
+    private long reportedDrops;
+    private volatile Thread writer;
+
+    /** @param capacity ring size, rounded up to a power of two */
+    AccessLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        ring = new Entry[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i;
+        }
+    }
+
+    /** @return false when the entry was dropped because the ring is full */
+    boolean record(String method, String path, String status, long bytes, long nanos) {
+        startWriter();
+        long pos = tail.get();
+        while (true) {
+            Entry entry = ring[(int) pos & mask];
+            long lag = entry.sequence - pos;
+            if (lag == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    entry.time = System.currentTimeMillis();
+                    entry.method = method;
+                    entry.path = path;
+                    entry.status = status;
+                    entry.bytes = bytes;
+                    entry.nanos = nanos;
+                    entry.sequence = pos + 1; // publishes the fields to the writer
+                    return true;
+                }
+                pos = tail.get();
+            } else if (lag < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                pos = tail.get(); // another thread took this slot
+            }
+        }
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    //the single consumer: writes out every filled slot in order
+    boolean drain() {
+        boolean any = false;
+        while (true) {
+            Entry entry = ring[(int) head & mask];
+            if (entry.sequence != head + 1) {
+                break;
+            }
+            line.setLength(0);
+            line.append("ts=").append(entry.time)
+                    .append(" method=").append(entry.method)
+                    .append(" path=").append(entry.path)
+                    .append(" status=").append(entry.status)
+                    .append(" bytes=").append(entry.bytes)
+                    .append(" duration_ms=").append(entry.nanos / 1000000).append('.');
+            long micros = entry.nanos / 1000 % 1000;
+            line.append(micros < 100 ? (micros < 10 ? "00" : "0") : "").append(micros);
+            entry.method = entry.path = entry.status = null;
+            entry.sequence = head + ring.length; // free for the lap after this one
+            head++;
+            ServerLog.println(ServerLog.INFO, TAG, line.toString());
+            any = true;
+        }
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            ServerLog.w(TAG, (drops - reportedDrops) + " entries dropped, the log could not keep up");
+            reportedDrops = drops;
+        }
+        return any;
+    }
+
+    private void startWriter() {
+        if (writer == null) {
+            synchronized (this) {
+                if (writer == null) {
+                    Thread t = new Thread(this, TAG);
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    t.start();
+                    writer = t;
+                }
+            }
+        }
+    }
+}
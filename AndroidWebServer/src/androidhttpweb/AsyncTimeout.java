@@ -0,0 +1,27 @@
+package androidhttpweb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Time allowed to the future returned by an asynchronous WebApi method
+ * before the client gets {@link #status()} instead, replacing
+ * {@link TinyWebServer#ASYNC_TIMEOUT} for that method. The future is
+ * cancelled when it runs out.
+ * <pre>
+ * {@literal @}AsyncTimeout(millis = 2000, status = "408")
+ * public CompletableFuture&lt;String&gt; reading(HashMap qparms) { ... }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface AsyncTimeout {
+
+    /** 0 waits for as long as the future takes. */
+    long millis();
+
+    /** e.g. "503" ({@link TinyWebServer#SERVICE_UNAVAILABLE}) or "408" ({@link TinyWebServer#REQUEST_TIMEOUT}) */
+    String status() default "503";
+}
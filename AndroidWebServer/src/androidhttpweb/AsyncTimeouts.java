@@ -0,0 +1,60 @@
+package androidhttpweb;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deadlines for the futures of asynchronous WebApi methods, kept by one
+ * shared timer thread; CompletableFuture.orTimeout only exists from Java 9.
+ */
+final class AsyncTimeouts {
+
+    private static final String TAG = "AsyncTimeouts";
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true); // most futures finish long before their deadline
+    }
+
+    private AsyncTimeouts() { }
+
+    /**
+     * @return a future completing like {@code future}, or with a
+     * {@link TimeoutException} after {@code millis}, in which case
+     * {@code future} is cancelled; {@code future} itself when millis is 0
+     */
+    static <T> CompletableFuture<T> within(final CompletableFuture<T> future, long millis) {
+        if (millis <= 0 || future.isDone()) {
+            return future;
+        }
+        final CompletableFuture<T> timed = new CompletableFuture<>();
+        final ScheduledFuture<?> deadline = TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (timed.completeExceptionally(new TimeoutException())) {
+                    future.cancel(true);
+                }
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, er) -> {
+            deadline.cancel(false);
+            if (er != null) {
+                timed.completeExceptionally(er);
+            } else {
+                timed.complete(value);
+            }
+        });
+        return timed;
+    }
+}
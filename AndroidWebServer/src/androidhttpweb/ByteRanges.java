@@ -0,0 +1,98 @@
+package androidhttpweb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsing of the Range and If-Range request headers (RFC 7233) for static
+ * files, so media players can seek and resume downloads.
+ */
+final class ByteRanges {
+
+    static final String ACCEPT_RANGES = "Accept-Ranges: bytes\r\n";
+
+    //more ranges than this are answered with the whole file
+    private static final int MAX_RANGES = 16;
+
+    private ByteRanges() { }
+
+    /**
+     * @return the satisfiable ranges as {start, end} pairs (end inclusive);
+     * an empty list when none is satisfiable (416); null when the whole file
+     * should be sent, because there is no usable Range header or If-Range
+     * does not match
+     */
+    static List<long[]> parse(HttpRequest request, String etag, long lastModified, long length) {
+        String range = request != null ? request.getHeader("Range") : null;
+        if (range == null || !range.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        if (!ifRangeMatches(request.getHeader("If-Range"), etag, lastModified)) {
+            return null;
+        }
+        String[] specs = range.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first = parseNumber(spec.substring(0, dash));
+            long last = parseNumber(spec.substring(dash + 1));
+            if (dash == 0) {
+                // suffix range: the last N bytes
+                if (last < 0) {
+                    return null;
+                }
+                if (last > 0 && length > 0) {
+                    ranges.add(new long[]{Math.max(0, length - last), length - 1});
+                }
+            } else {
+                if (first < 0 || (dash < spec.length() - 1 && (last < 0 || last < first))) {
+                    return null;
+                }
+                if (first < length) {
+                    long end = dash == spec.length() - 1 ? length - 1 : Math.min(last, length - 1);
+                    ranges.add(new long[]{first, end});
+                }
+            }
+        }
+        return ranges;
+    }
+
+    //If-Range needs a strong ETag or the exact Last-Modified date
+    private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(etag);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long date = ConditionalRequests.parseDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static long parseNumber(String value) {
+        value = value.trim();
+        if (value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+}
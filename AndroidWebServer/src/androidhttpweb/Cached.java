@@ -0,0 +1,29 @@
+package androidhttpweb;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the result of a WebApi method for GET requests, keyed by the route
+ * and its query parameters. Concurrent requests for a key that is missing or
+ * expired wait for one call of the method and share its result, so the
+ * method runs at most once per key and TTL however many clients ask.
+ * <pre>
+ * {@literal @}Cached(ttlMillis = 1000)
+ * public String status(HashMap qparms, HttpResponse response) { ... }
+ * </pre>
+ * Only successful results are kept; status, content type, ETag and added
+ * headers are replayed with the body.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cached {
+
+    /** How long a result is served before the method is called again. */
+    long ttlMillis();
+
+    /** Distinct parameter sets kept, least recently used ones are dropped first. */
+    int maxEntries() default 256;
+}
@@ -0,0 +1,149 @@
+package androidhttpweb;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Body of a streaming WebApi method, {@code method(HashMap, HttpResponse,
+ * OutputStream)}. Writes are collected in a buffer of
+ * {@link TinyWebServer#STREAM_CHUNK_SIZE} bytes and go out as one
+ * {@code Transfer-Encoding: chunked} chunk each time it fills up or
+ * {@link #flush()} is called. Each chunk is sent before the write returns,
+ * so a client that reads slowly slows the method down instead of the
+ * response piling up in memory.
+ * <p>
+ * The head is sent with the first chunk: status, content type and headers
+ * must be set before that. A body that fits in the buffer is sent with a
+ * Content-Length instead, and HTTP/1.0 clients get the body as is,
+ * delimited by closing the connection.
+ */
+final class ChunkedResponseStream extends OutputStream {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final TinyWebServer server;
+    private final DataOutputStream out;
+    private final HttpResponse response;
+    private final boolean chunked;
+    //allocated by the first write, the server creates some of these streams just in case
+    private byte[] buffer;
+    private int count;
+    private boolean committed;
+    private boolean closed;
+
+    ChunkedResponseStream(TinyWebServer server, DataOutputStream out, HttpRequest request, HttpResponse response) {
+        this.server = server;
+        this.out = out;
+        this.response = response;
+        this.chunked = request == null || !"HTTP/1.0".equals(request.getVersion());
+    }
+
+    /** @return whether the head has gone out, after which the status can no longer change */
+    boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("response already finished");
+        }
+        if (buffer == null) {
+            buffer = new byte[Math.max(256, TinyWebServer.STREAM_CHUNK_SIZE)];
+        } else if (count == buffer.length) {
+            sendChunk(buffer, 0, count);
+            count = 0;
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("response already finished");
+        }
+        if (buffer == null) {
+            buffer = new byte[Math.max(256, TinyWebServer.STREAM_CHUNK_SIZE)];
+        }
+        if (count + len <= buffer.length) {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+            return;
+        }
+        if (count > 0) {
+            sendChunk(buffer, 0, count);
+            count = 0;
+        }
+        if (len >= buffer.length) {
+            sendChunk(b, off, len); // large writes go out without the copy
+        } else {
+            System.arraycopy(b, off, buffer, 0, len);
+            count = len;
+        }
+    }
+
+    /** Sends what is buffered as a chunk now, e.g. after each line of a live log. */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0 && !closed) {
+            sendChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /** Ends the body; the server does it when the method returns. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!committed) {
+            committed = true;
+            server.writeStreamHead(out, response, count, false);
+            if (count > 0) {
+                out.write(buffer, 0, count);
+            }
+        } else if (chunked) {
+            if (count > 0) {
+                writeChunk(buffer, 0, count);
+            }
+            out.write(LAST_CHUNK);
+        } else if (count > 0) {
+            out.write(buffer, 0, count);
+        }
+        count = 0;
+        out.flush();
+    }
+
+    private void sendChunk(byte[] b, int off, int len) throws IOException {
+        if (!committed) {
+            committed = true;
+            if (!chunked) {
+                response.keepAlive = false; // the end of the body is the end of the connection
+            }
+            server.writeStreamHead(out, response, -1, chunked);
+        }
+        if (chunked) {
+            writeChunk(b, off, len);
+        } else {
+            out.write(b, off, len);
+        }
+        if (out instanceof ConnectionOutput) {
+            ((ConnectionOutput) out).sendNow();
+        } else {
+            out.flush();
+        }
+    }
+
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        out.write(Integer.toHexString(len).getBytes(ASCII));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+}
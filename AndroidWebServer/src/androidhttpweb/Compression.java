@@ -0,0 +1,117 @@
+package androidhttpweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Accept-Encoding negotiation and gzip/deflate encoding of response bodies.
+ */
+final class Compression {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final String VARY = "Vary: Accept-Encoding\r\n";
+
+    private Compression() { }
+
+    /** Text-like types worth compressing; images and video already are. */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg+xml");
+    }
+
+    /**
+     * @return {@link #GZIP} or {@link #DEFLATE}, whichever the client accepts
+     * with the higher q-value (gzip on a tie), or null for identity
+     */
+    static String negotiate(HttpRequest request) {
+        String accept = request != null ? request.getHeader("Accept-Encoding") : null;
+        if (accept == null) {
+            return null;
+        }
+        //-1 while a coding is not listed, so only unlisted ones fall back to "*"
+        float gzip = -1;
+        float deflate = -1;
+        float any = 0;
+        for (String item : accept.split(",")) {
+            String coding = item.trim();
+            float q = 1;
+            int semicolon = coding.indexOf(';');
+            if (semicolon >= 0) {
+                q = quality(coding.substring(semicolon + 1));
+                coding = coding.substring(0, semicolon).trim();
+            }
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = q;
+            } else if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static float quality(String parameter) {
+        parameter = parameter.trim();
+        if (!parameter.startsWith("q=")) {
+            return 1;
+        }
+        try {
+            return Float.parseFloat(parameter.substring(2).trim());
+        } catch (NumberFormatException er) {
+            return 0;
+        }
+    }
+
+    static byte[] compress(byte[] data, int offset, int length, String encoding, final int level) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, length / 3));
+        Deflater deflater = null;
+        try {
+            OutputStream out;
+            if (encoding.equals(GZIP)) {
+                out = new GZIPOutputStream(bytes, 8192) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            } else {
+                deflater = new Deflater(level);
+                out = new DeflaterOutputStream(bytes, deflater, 8192);
+            }
+            out.write(data, offset, length);
+            out.close();
+        } catch (IOException er) {
+            throw new IllegalStateException(er); // not thrown by in-memory streams
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /** ETag of an encoded representation, distinct from the identity one. */
+    static String encodedEtag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+}
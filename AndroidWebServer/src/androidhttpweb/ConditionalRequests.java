@@ -0,0 +1,140 @@
+package androidhttpweb;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * Validators for conditional GET: ETag and Last-Modified values and the
+ * If-None-Match / If-Modified-Since checks that turn a request into a
+ * 304 Not Modified.
+ */
+final class ConditionalRequests {
+
+    private ConditionalRequests() { }
+
+    /** Cheap validator for a file, derived from its size and modification time. */
+    static String etag(long length, long lastModified) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+    }
+
+    /** Validator for a generated body. */
+    static String etag(byte[] body) {
+        return etag(body, 0, body.length);
+    }
+
+    static String etag(byte[] body, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(body, offset, length);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(length) + "\"";
+    }
+
+    /** ETag and, when {@code lastModified > 0}, Last-Modified header lines. */
+    static String validatorHeaders(String etag, long lastModified) {
+        String headers = "ETag: " + etag + "\r\n";
+        if (lastModified > 0) {
+            headers += "Last-Modified: " + formatDate(lastModified) + "\r\n";
+        }
+        return headers;
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since as required by RFC 7232.
+     *
+     * @param lastModified 0 when the resource has no modification time
+     */
+    static boolean isNotModified(HttpRequest request, String etag, long lastModified) {
+        if (request == null) {
+            return false;
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null && lastModified > 0) {
+            long since = parseDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    //weak comparison: W/"x" matches "x"
+    private static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final String[] DAYS = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"};
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun",
+            "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    //parsing is rare next to formatting, so it keeps a SimpleDateFormat per thread
+    private static final ThreadLocal<SimpleDateFormat> HTTP_DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format;
+        }
+    };
+
+    /** @return the RFC 1123 date, formatted by hand: this runs for every static file response */
+    static String formatDate(long millis) {
+        long days = Math.floorDiv(millis, 86400000L);
+        int secondOfDay = (int) (Math.floorMod(millis, 86400000L) / 1000);
+        //civil date from days since 1970-01-01, after Howard Hinnant's days_from_civil inverse
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] date = new char[29];
+        DAYS[(int) Math.floorMod(days, 7L)].getChars(0, 3, date, 0);
+        date[3] = ',';
+        date[4] = ' ';
+        twoDigits(date, 5, day);
+        date[7] = ' ';
+        MONTHS[month - 1].getChars(0, 3, date, 8);
+        date[11] = ' ';
+        twoDigits(date, 12, (int) (year / 100));
+        twoDigits(date, 14, (int) (year % 100));
+        date[16] = ' ';
+        twoDigits(date, 17, secondOfDay / 3600);
+        date[19] = ':';
+        twoDigits(date, 20, secondOfDay / 60 % 60);
+        date[22] = ':';
+        twoDigits(date, 23, secondOfDay % 60);
+        " GMT".getChars(0, 4, date, 25);
+        return new String(date);
+    }
+
+    private static void twoDigits(char[] to, int at, int value) {
+        to[at] = (char) ('0' + value / 10);
+        to[at + 1] = (char) ('0' + value % 10);
+    }
+
+    /** @return the date in millis, or -1 when it is not an RFC 1123 date */
+    static long parseDate(String value) {
+        try {
+            return HTTP_DATE_FORMAT.get().parse(value).getTime();
+        } catch (ParseException er) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package androidhttpweb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ready-made executors for {@link TinyWebServer#setConnectionExecutor}.
+ * Every executor returned here is bounded and throws
+ * {@link RejectedExecutionException} when full, which the server answers
+ * with {@link TinyWebServer#SERVICE_UNAVAILABLE}.
+ */
+public final class ConnectionExecutors {
+
+    private static final String TAG = "ConnectionExecutors";
+
+    private ConnectionExecutors() { }
+
+    /**
+     * Fixed number of worker threads with a bounded hand-off queue.
+     * Idle workers die after a minute so a quiet server holds no threads.
+     */
+    public static ExecutorService boundedPool(int threads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                daemonThreads("TinyWebServer-worker-"),
+                new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * One virtual thread per task, at most {@code maxConcurrent} at a time.
+     * Needs a JDK 21+ runtime; elsewhere falls back to
+     * {@link #boundedPool(int, int)} with a modest thread count.
+     */
+    public static Executor virtualThreads(int maxConcurrent) {
+        try {
+            ExecutorService virtual = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new LimitedExecutor(virtual, maxConcurrent);
+        } catch (Exception er) {
+            ServerLog.w(TAG, "virtualThreads: not supported by this runtime, using a bounded pool");
+            int threads = Math.min(maxConcurrent, 4 * Runtime.getRuntime().availableProcessors());
+            return boundedPool(threads, maxConcurrent - threads);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /** Caps the number of running tasks of an otherwise unbounded executor. */
+    private static final class LimitedExecutor implements Executor {
+
+        private final Executor delegate;
+        private final Semaphore permits;
+
+        LimitedExecutor(Executor delegate, int maxConcurrent) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrent);
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("too many concurrent connections");
+            }
+            try {
+                delegate.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException er) {
+                permits.release();
+                throw er;
+            }
+        }
+    }
+}
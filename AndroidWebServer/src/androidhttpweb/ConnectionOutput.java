@@ -0,0 +1,212 @@
+package androidhttpweb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Response stream of one client connection. Besides the usual stream writes
+ * it can send a slice of a file without copying it through the Java heap,
+ * using {@link FileChannel#transferTo} (sendfile on Linux) where the
+ * connection is backed by a socket channel.
+ */
+abstract class ConnectionOutput extends DataOutputStream {
+
+    //bytes that go around the stream, e.g. through transferFrom, and miss its count
+    private long transferred;
+    //answering a HEAD request: the head goes out, the body the response would have had is dropped
+    private boolean headOnly;
+    private boolean dropping;
+
+    ConnectionOutput(OutputStream out) {
+        super(out);
+    }
+
+    /** @return bytes written or transferred since the previous call */
+    long takeBytesWritten() {
+        long total = written + transferred;
+        written = 0;
+        transferred = 0;
+        return total;
+    }
+
+    /** Called by implementations for bytes they send without the stream. */
+    final void countDirect(long count) {
+        transferred += count;
+    }
+
+    /** Starts a response; for a HEAD request everything after its head is dropped until {@link #endResponse}. */
+    void startResponse(boolean headOnly) {
+        this.headOnly = headOnly;
+        this.dropping = false;
+    }
+
+    void endResponse() {
+        headOnly = false;
+        dropping = false;
+    }
+
+    /** @return whether body bytes are being dropped, for implementations sending them around the stream */
+    final boolean isDroppingBody() {
+        return dropping;
+    }
+
+    /**
+     * {@link #writeResponse}, except that for a HEAD request only the head
+     * goes out: it keeps the Content-Length or Transfer-Encoding the body
+     * would have had, and all that is written after it is dropped.
+     */
+    final void sendResponse(byte[] head, int headLength, byte[] body, int offset, int length) throws IOException {
+        if (dropping) {
+            return;
+        }
+        if (headOnly) {
+            writeResponse(head, headLength, null, 0, 0);
+            dropping = true;
+        } else {
+            writeResponse(head, headLength, body, offset, length);
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!dropping) {
+            super.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (!dropping) {
+            super.write(b, off, len);
+        }
+    }
+
+    /**
+     * Writes an encoded response head and, when {@code body} is not null,
+     * the body after it, ideally in one write. The head buffer may be reused
+     * once this returns; the body must not change until it has been sent.
+     */
+    void writeResponse(byte[] head, int headLength, byte[] body, int offset, int length) throws IOException {
+        write(head, 0, headLength);
+        if (body != null) {
+            write(body, offset, length);
+        }
+    }
+
+    /** @return whether writeResponse holds on to the body until it is sent instead of writing it before returning */
+    boolean retainsBody() {
+        return false;
+    }
+
+    /**
+     * Sends everything written so far before returning, waiting while the
+     * client is slow to read; for responses produced piece by piece.
+     */
+    void sendNow() throws IOException {
+        flush();
+    }
+
+    /** @return whether the caller is an event loop thread, which must not block on one response */
+    boolean isEventLoop() {
+        return false;
+    }
+
+    /**
+     * Writes {@code count} bytes of {@code file} starting at {@code position}
+     * after everything written so far. Takes ownership of {@code file} and
+     * closes it once sent.
+     */
+    abstract void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Writes {@code count} bytes of a shared file mapping starting at
+     * {@code position} after everything written so far. Takes a reference
+     * of its own on {@code mapping} and releases it once sent.
+     */
+    abstract void writeMapped(MappedFileCache.Mapping mapping, long position, long count) throws IOException;
+
+    /** Blocking socket of an {@link TinyWebServer.EchoThread}. */
+    static final class Blocking extends ConnectionOutput {
+
+        private final WritableByteChannel channel;
+        private final ByteBuffer[] gather = new ByteBuffer[2];
+
+        Blocking(Socket socket) throws IOException {
+            super(new BufferedOutputStream(socket.getOutputStream(), TinyWebServer.READ_BUFFER_SIZE));
+            channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+        }
+
+        /** Small responses fill the stream buffer; larger ones go out in one gathering write. */
+        @Override
+        void writeResponse(byte[] head, int headLength, byte[] body, int offset, int length) throws IOException {
+            if (body == null || headLength + length <= TinyWebServer.READ_BUFFER_SIZE
+                    || !(channel instanceof GatheringByteChannel)) {
+                super.writeResponse(head, headLength, body, offset, length);
+                return;
+            }
+            flush();
+            gather[0] = ByteBuffer.wrap(head, 0, headLength);
+            gather[1] = ByteBuffer.wrap(body, offset, length);
+            try {
+                while (gather[1].hasRemaining()) {
+                    ((GatheringByteChannel) channel).write(gather);
+                }
+            } finally {
+                gather[0] = null;
+                gather[1] = null;
+            }
+            countDirect(headLength + length);
+        }
+
+        @Override
+        void transferFrom(FileChannel file, long position, long count) throws IOException {
+            if (isDroppingBody()) {
+                file.close();
+                return;
+            }
+            countDirect(count);
+            flush();
+            try {
+                while (count > 0) {
+                    long sent = file.transferTo(position, count, channel);
+                    if (sent <= 0 && position >= file.size()) {
+                        throw new IOException("file truncated while sending");
+                    }
+                    position += sent;
+                    count -= sent;
+                }
+                flush();
+            } finally {
+                file.close();
+            }
+        }
+
+        @Override
+        void writeMapped(MappedFileCache.Mapping mapping, long position, long count) throws IOException {
+            if (isDroppingBody()) {
+                return;
+            }
+            if (!mapping.retain()) {
+                throw new IOException("mapping released while in use");
+            }
+            countDirect(count);
+            flush();
+            try {
+                ByteBuffer slice = mapping.slice(position, count);
+                while (slice.hasRemaining()) {
+                    channel.write(slice);
+                }
+            } finally {
+                mapping.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package androidhttpweb;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parsed HTTP/1.x request as produced by {@link HttpRequestParser}.
+ * One instance is reused for every request on a connection, so callers
+ * must not hold on to it after the response has been written.
+ */
+public class HttpRequest {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    String method = "";
+    String uri = "";
+    String version = "";
+    final List<String> headerNames = new ArrayList<>();
+    final List<String> headerValues = new ArrayList<>();
+    byte[] body = new byte[0];
+    int bodyLength;
+    //bodies larger than TinyWebServer.BODY_MEMORY_LIMIT, body then holds at most the start
+    File bodyFile;
+    private OutputStream bodyOut;
+    private boolean bodyLoaded;
+    //set instead of body for multipart/form-data
+    MultipartParser multipart;
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /** @return the first value of header {@code name} (any case), or null */
+    public String getHeader(String name) {
+        for (int i = 0; i < headerNames.size(); i++) {
+            if (headerNames.get(i).equalsIgnoreCase(name)) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    public int getHeaderCount() {
+        return headerNames.size();
+    }
+
+    public String getHeaderName(int index) {
+        return headerNames.get(index);
+    }
+
+    public String getHeaderValue(int index) {
+        return headerValues.get(index);
+    }
+
+    /** @return Content-Length, 0 when absent and -1 when malformed */
+    public long getContentLength() {
+        String value = getHeader("Content-Length");
+        if (value == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9' || length > Long.MAX_VALUE / 10) {
+                return -1;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return value.isEmpty() ? -1 : length;
+    }
+
+    /**
+     * @return whether the client lets the connection stay open: HTTP/1.1
+     * unless it sends {@code Connection: close}, HTTP/1.0 only with
+     * {@code Connection: keep-alive}
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if (connection != null && hasToken(connection, "close")) {
+            return false;
+        }
+        if ("HTTP/1.1".equals(version)) {
+            return true;
+        }
+        return connection != null && hasToken(connection, "keep-alive");
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String item : value.split(",")) {
+            if (item.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return the backing body array; only the first {@link #getBodyLength()} bytes are valid.
+     * A body that was spooled to disk is read into memory on the first call.
+     */
+    public byte[] getBody() {
+        if (bodyFile != null && !bodyLoaded) {
+            try (InputStream in = new FileInputStream(bodyFile)) {
+                byte[] all = new byte[bodyLength];
+                int n = 0;
+                for (int read; n < all.length && (read = in.read(all, n, all.length - n)) > 0; ) {
+                    n += read;
+                }
+                body = all;
+                bodyLoaded = true;
+            } catch (IOException er) {
+                throw new IllegalStateException("request body lost: " + er.getMessage(), er);
+            }
+        }
+        return body;
+    }
+
+    public String getBodyAsString() {
+        return new String(getBody(), 0, bodyLength, UTF_8);
+    }
+
+    /** @return true when the body fits in memory, false when it was spooled to a temporary file */
+    public boolean isBodyInMemory() {
+        return bodyFile == null || bodyLoaded;
+    }
+
+    /** @return a fresh stream over the body, read from disk when it was spooled */
+    public InputStream getBodyStream() throws IOException {
+        if (isBodyInMemory()) {
+            return new ByteArrayInputStream(body, 0, bodyLength);
+        }
+        return new FileInputStream(bodyFile);
+    }
+
+    /**
+     * Stores body bytes as they are parsed, moving to a temporary file once
+     * the body passes {@link TinyWebServer#BODY_MEMORY_LIMIT}.
+     *
+     * @param expected the full body size, or -1 when it is not known yet
+     */
+    void appendBody(byte[] buf, int off, int n, long expected) throws IOException {
+        int needed = bodyLength + n;
+        if (bodyOut == null && needed > TinyWebServer.BODY_MEMORY_LIMIT) {
+            bodyFile = File.createTempFile("body", ".tmp", TinyWebServer.uploadDir());
+            bodyOut = new FileOutputStream(bodyFile);
+            bodyOut.write(body, 0, bodyLength);
+        }
+        if (bodyOut != null) {
+            bodyOut.write(buf, off, n);
+            bodyLength = needed;
+            return;
+        }
+        if (needed > body.length) {
+            int size = Math.max(needed, body.length * 2);
+            if (expected > 0) {
+                size = (int) Math.min(size, expected); // the exact size when Content-Length said so
+            }
+            body = Arrays.copyOf(body, Math.min(size, TinyWebServer.BODY_MEMORY_LIMIT));
+        }
+        System.arraycopy(buf, off, body, bodyLength, n);
+        bodyLength = needed;
+    }
+
+    void endBody() throws IOException {
+        if (bodyOut != null) {
+            bodyOut.close();
+            bodyOut = null;
+        }
+    }
+
+    /** @return true when the body was a multipart/form-data upload, see {@link #getUploadedFiles()} */
+    public boolean isMultipart() {
+        return multipart != null;
+    }
+
+    /** @return the non-file fields of a multipart/form-data body */
+    public Map<String, String> getFormFields() {
+        return multipart != null ? multipart.getFields() : Collections.<String, String>emptyMap();
+    }
+
+    /** @return the file parts of a multipart/form-data body, deleted after the response */
+    public List<UploadedFile> getUploadedFiles() {
+        return multipart != null ? multipart.getFiles() : Collections.<UploadedFile>emptyList();
+    }
+
+    void reset() {
+        if (multipart != null) {
+            multipart.discard();
+            multipart = null;
+        }
+        method = "";
+        uri = "";
+        version = "";
+        headerNames.clear();
+        headerValues.clear();
+        bodyLength = 0;
+        if (bodyFile != null) {
+            try {
+                endBody();
+            } catch (IOException ignored) {
+            }
+            bodyFile.delete();
+            bodyFile = null;
+            bodyLoaded = false;
+            body = new byte[0]; // a spooled body loaded by getBody() is not kept for the next request
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package androidhttpweb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser. Bytes are fed as they arrive with
+ * {@link #parse(byte[], int, int)}, which stops right after the end of a
+ * request so pipelined requests can be answered one at a time, in order.
+ * Header names are matched case-insensitively on the raw bytes; well known
+ * names reuse a shared String instead of allocating a new one.
+ * <p>
+ * Bodies are read by Content-Length or decoded from chunked transfer
+ * encoding, however the bytes are split across reads.
+ */
+public class HttpRequestParser {
+
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADER_LINE = 1;
+    private static final int BODY = 2;
+    private static final int COMPLETE = 3;
+    private static final int ERROR = 4;
+    private static final int CHUNK_SIZE = 5;
+    private static final int CHUNK_DATA = 6;
+    private static final int CHUNK_DATA_END = 7;
+    private static final int TRAILER = 8;
+
+    //interim answer to Expect: 100-continue, see takeExpectContinue
+    static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(HttpRequest.UTF_8);
+
+    private static final String[] KNOWN_HEADERS = {
+        "Host", "Connection", "Content-Length", "Content-Type", "User-Agent",
+        "Accept", "Accept-Encoding", "Accept-Language", "Cache-Control", "Cookie",
+        "Referer", "Origin", "Transfer-Encoding", "If-None-Match", "If-Modified-Since",
+        "Range", "If-Range", "Upgrade-Insecure-Requests", "Expect"
+    };
+
+    private final HttpRequest request = new HttpRequest();
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int headerBytes;
+    private long bodyRemaining;
+    private long bodyTotal;
+    private long bodyLimit;
+    private boolean expectContinue;
+    private int state = REQUEST_LINE;
+    private String error;
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public boolean isComplete() {
+        return state == COMPLETE;
+    }
+
+    public boolean hasError() {
+        return state == ERROR;
+    }
+
+    /**
+     * @return true between the first byte of a request and the end of its
+     * headers, the span covered by {@link TinyWebServer#HEADER_READ_TIMEOUT}
+     */
+    public boolean isReadingHeaders() {
+        return (state == REQUEST_LINE && lineLength > 0) || state == HEADER_LINE;
+    }
+
+    /**
+     * @return true once, right after the headers of a request that sent
+     * {@code Expect: 100-continue}; the caller answers with {@link #CONTINUE_RESPONSE}
+     */
+    public boolean takeExpectContinue() {
+        boolean expect = expectContinue;
+        expectContinue = false;
+        return expect;
+    }
+
+    /** @return status code to answer a malformed request with, or null */
+    public String getError() {
+        return error;
+    }
+
+    /** Prepares the parser and its request object for the next request. */
+    public void reset() {
+        request.reset();
+        lineLength = 0;
+        headerBytes = 0;
+        bodyRemaining = 0;
+        bodyTotal = 0;
+        expectContinue = false;
+        state = REQUEST_LINE;
+        error = null;
+    }
+
+    /**
+     * Consumes bytes up to the end of the current request.
+     *
+     * @return number of bytes consumed from {@code buf}
+     */
+    public int parse(byte[] buf, int off, int len) {
+        int pos = off;
+        int end = off + len;
+        while (pos < end && state != COMPLETE && state != ERROR) {
+            if (state == BODY || state == CHUNK_DATA) {
+                int n = (int) Math.min(bodyRemaining, end - pos);
+                appendBody(buf, pos, n);
+                pos += n;
+                bodyRemaining -= n;
+                if (bodyRemaining == 0 && state == BODY) {
+                    endOfBody();
+                } else if (bodyRemaining == 0 && state == CHUNK_DATA) {
+                    state = CHUNK_DATA_END;
+                }
+                continue;
+            }
+            byte b = buf[pos++];
+            if (++headerBytes > TinyWebServer.MAX_HEADER_SIZE) {
+                fail(TinyWebServer.REQUEST_HEADER_FIELDS_TOO_LARGE);
+            } else if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                endOfLine();
+                lineLength = 0;
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+        return pos - off;
+    }
+
+    private void endOfLine() {
+        if (state == REQUEST_LINE) {
+            if (lineLength == 0) {
+                return; // tolerate empty lines between pipelined requests
+            }
+            parseRequestLine();
+        } else if (state == CHUNK_DATA_END) {
+            if (lineLength != 0) {
+                fail(TinyWebServer.BAD_REQUEST);
+                return;
+            }
+            headerBytes = 0; // the limit applies to each chunk size line, not the whole body
+            state = CHUNK_SIZE;
+        } else if (state == CHUNK_SIZE) {
+            parseChunkSize();
+        } else if (state == TRAILER) {
+            if (lineLength == 0) {
+                endOfBody(); // trailer fields are not used
+            }
+        } else if (lineLength == 0) {
+            endOfHeaders();
+        } else {
+            parseHeaderLine();
+        }
+    }
+
+    private void parseRequestLine() {
+        int sp1 = indexOf(' ', 0);
+        int sp2 = sp1 < 0 ? -1 : indexOf(' ', sp1 + 1);
+        if (sp1 <= 0 || sp2 <= sp1 + 1) {
+            fail(TinyWebServer.BAD_REQUEST);
+            return;
+        }
+        request.method = ascii(0, sp1);
+        request.uri = ascii(sp1 + 1, sp2);
+        request.version = ascii(sp2 + 1, lineLength);
+        state = HEADER_LINE;
+    }
+
+    private void parseHeaderLine() {
+        int colon = indexOf(':', 0);
+        if (colon <= 0) {
+            fail(TinyWebServer.BAD_REQUEST);
+            return;
+        }
+        int start = colon + 1;
+        int stop = lineLength;
+        while (start < stop && (line[start] == ' ' || line[start] == '\t')) {
+            start++;
+        }
+        while (stop > start && (line[stop - 1] == ' ' || line[stop - 1] == '\t')) {
+            stop--;
+        }
+        request.headerNames.add(headerName(colon));
+        request.headerValues.add(ascii(start, stop));
+    }
+
+    private void endOfHeaders() {
+        String transferEncoding = request.getHeader("Transfer-Encoding");
+        boolean chunked = transferEncoding != null;
+        if (chunked && !transferEncoding.trim().equalsIgnoreCase("chunked")) {
+            fail(TinyWebServer.NOT_IMPLEMENTED);
+            return;
+        }
+        if (chunked && request.getHeader("Content-Length") != null) {
+            fail(TinyWebServer.BAD_REQUEST); // ambiguous framing, a smuggling attempt or a broken proxy
+            return;
+        }
+        long length = chunked ? -1 : request.getContentLength();
+        boolean multipart = MultipartParser.isMultipart(request);
+        bodyLimit = multipart ? TinyWebServer.MAX_UPLOAD_SIZE : TinyWebServer.MAX_BODY_SIZE;
+        if (!chunked && length < 0) {
+            fail(TinyWebServer.BAD_REQUEST);
+            return;
+        } else if (length == 0) {
+            if (request.getHeader("Content-Length") == null && expectsBody(request.method)) {
+                fail(TinyWebServer.LENGTH_REQUIRED);
+            } else {
+                state = COMPLETE;
+            }
+            return;
+        } else if (length > bodyLimit) {
+            fail(TinyWebServer.PAYLOAD_TOO_LARGE);
+            return;
+        }
+        String expect = request.getHeader("Expect");
+        if (expect != null && !expect.trim().equalsIgnoreCase("100-continue")) {
+            fail(TinyWebServer.EXPECTATION_FAILED);
+            return;
+        }
+        if (multipart) {
+            // streamed to files as it arrives instead of collected in body
+            request.multipart = MultipartParser.forRequest(request, TinyWebServer.getUploadSink());
+            if (request.multipart.getError() != null) {
+                fail(request.multipart.getError());
+                return;
+            }
+        }
+        expectContinue = expect != null && "HTTP/1.1".equals(request.version);
+        bodyRemaining = length;
+        headerBytes = 0;
+        state = chunked ? CHUNK_SIZE : BODY;
+    }
+
+    //hex size, optionally followed by ;extensions, which are ignored
+    private void parseChunkSize() {
+        long size = 0;
+        int digits = 0;
+        for (int i = 0; i < lineLength && line[i] != ';'; i++) {
+            int b = line[i];
+            int digit = b >= '0' && b <= '9' ? b - '0'
+                    : (b | 0x20) >= 'a' && (b | 0x20) <= 'f' ? (b | 0x20) - 'a' + 10 : -1;
+            if (digit < 0) {
+                if ((b == ' ' || b == '\t') && digits > 0) {
+                    break; // whitespace before the extensions
+                }
+                fail(TinyWebServer.BAD_REQUEST);
+                return;
+            }
+            if (++digits > 15) {
+                fail(TinyWebServer.PAYLOAD_TOO_LARGE);
+                return;
+            }
+            size = size * 16 + digit;
+        }
+        if (digits == 0) {
+            fail(TinyWebServer.BAD_REQUEST);
+        } else if (size > bodyLimit - bodyTotal) {
+            fail(TinyWebServer.PAYLOAD_TOO_LARGE);
+        } else if (size == 0) {
+            state = TRAILER;
+        } else {
+            bodyTotal += size;
+            bodyRemaining = size;
+            state = CHUNK_DATA;
+        }
+    }
+
+    private static boolean expectsBody(String method) {
+        return method.equals("POST") || method.equals("PUT") || method.equals("PATCH");
+    }
+
+    private void endOfBody() {
+        if (request.multipart != null) {
+            request.multipart.finish();
+            if (request.multipart.getError() != null) {
+                fail(request.multipart.getError());
+                return;
+            }
+        }
+        try {
+            request.endBody();
+        } catch (IOException er) {
+            fail(TinyWebServer.INTERNAL_ERROR);
+            return;
+        }
+        state = COMPLETE;
+    }
+
+    private void appendBody(byte[] buf, int off, int n) {
+        if (request.multipart != null) {
+            request.multipart.write(buf, off, n);
+            if (request.multipart.getError() != null) {
+                fail(request.multipart.getError());
+            }
+            return;
+        }
+        try {
+            request.appendBody(buf, off, n, state == BODY ? request.bodyLength + bodyRemaining : -1);
+        } catch (IOException er) {
+            fail(TinyWebServer.INTERNAL_ERROR); // temporary file for a large body
+        }
+    }
+
+    private String headerName(int length) {
+        for (String known : KNOWN_HEADERS) {
+            if (known.length() == length && equalsIgnoreCase(known)) {
+                return known;
+            }
+        }
+        return ascii(0, length);
+    }
+
+    private boolean equalsIgnoreCase(String known) {
+        for (int i = 0; i < known.length(); i++) {
+            char k = known.charAt(i);
+            if (line[i] != k && (k == '-' || (line[i] | 0x20) != (k | 0x20))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < lineLength; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("deprecation")
+    private String ascii(int from, int to) {
+        return new String(line, 0, from, to - from);
+    }
+
+    private void fail(String status) {
+        error = status;
+        state = ERROR;
+    }
+}
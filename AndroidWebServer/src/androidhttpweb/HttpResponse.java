@@ -0,0 +1,71 @@
+package androidhttpweb;
+
+/**
+ * Status and headers of the response being built for one request. Like
+ * {@link HttpRequest}, one instance is reused for every request on a
+ * connection, so nothing in it is shared between concurrent requests.
+ * WebApi methods declared as {@code method(HashMap, HttpResponse)} receive
+ * it to set their status, content type or extra headers.
+ */
+public class HttpResponse {
+
+    String status = TinyWebServer.OKAY;
+    String contentType = "text/html";
+    boolean keepAlive = true;
+    //requests the connection may still carry after this one, 0 when unknown
+    int requestsLeft;
+    String etag;
+    //metrics label, the WebApi path when a route answered
+    String route = ServerMetrics.ROUTE_STATIC;
+    private final StringBuilder headers = new StringBuilder();
+
+    public String getStatus() {
+        return status;
+    }
+
+    /** @param status one of the {@link TinyWebServer} status codes, e.g. {@link TinyWebServer#CREATED} */
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Overrides the ETag computed from the body, e.g. with a version number
+     * of the data behind it. A matching If-None-Match then gets a 304.
+     */
+    public void setETag(String etag) {
+        this.etag = etag.startsWith("\"") || etag.startsWith("W/") ? etag : "\"" + etag + "\"";
+    }
+
+    public void addHeader(String name, String value) {
+        headers.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    /** @return the header lines added with {@link #addHeader}, CRLF terminated, valid until {@link #reset} */
+    CharSequence getExtraHeaders() {
+        return headers;
+    }
+
+    //replaces the added header lines, e.g. with those of a cached result
+    void setExtraHeaders(String lines) {
+        headers.setLength(0);
+        headers.append(lines);
+    }
+
+    void reset() {
+        status = TinyWebServer.OKAY;
+        contentType = "text/html";
+        keepAlive = true;
+        requestsLeft = 0;
+        etag = null;
+        route = ServerMetrics.ROUTE_STATIC;
+        headers.setLength(0);
+    }
+}
@@ -0,0 +1,494 @@
+package androidhttpweb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes JSON as UTF-8 bytes straight into a byte buffer, without building
+ * Strings on the way. With an {@link OutputStream} the buffer is sent to it
+ * whenever it fills up, so a streaming WebApi method can write any amount
+ * of JSON in constant memory:
+ * <pre>
+ * JsonWriter json = new JsonWriter(out);
+ * json.beginArray();
+ * for (Reading r : readings) {
+ *     json.beginObject().name("t").value(r.time).name("v").value(r.value).endObject();
+ * }
+ * json.endArray().flush();
+ * </pre>
+ * WebApi methods may also just return a Map, a List, an array, a number or
+ * a plain object, which the server writes with {@link #value(Object)}.
+ * <p>
+ * Not thread-safe.
+ */
+public final class JsonWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(HttpRequest.UTF_8);
+    private static final byte[] NULL = "null".getBytes(HttpRequest.UTF_8);
+    private static final byte[] TRUE = "true".getBytes(HttpRequest.UTF_8);
+    private static final byte[] FALSE = "false".getBytes(HttpRequest.UTF_8);
+    //containers deeper than this are cycles rather than data
+    private static final int MAX_DEPTH = 256;
+    //buffers the server lends out are shrunk back past this size
+    private static final int POOLED_SIZE = 64 * 1024;
+    //public fields and getters of plain objects, by class
+    private static final ConcurrentHashMap<Class<?>, Property[]> PROPERTIES = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<JsonWriter> WRITERS = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter();
+        }
+    };
+
+    private byte[] buffer;
+    private int count;
+    private OutputStream out;
+    private int flushAt;
+    //bytes already handed to out
+    private long flushed;
+    //per open container: whether a value has been written in it yet
+    private boolean[] started = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    /** Collects the JSON in memory, see {@link #toByteArray()}. */
+    public JsonWriter() {
+        this(null, 1024);
+    }
+
+    /** Writes to {@code out} in pieces of about 8KB; {@link #flush()} at the end. */
+    public JsonWriter(OutputStream out) {
+        this(out, 8192);
+    }
+
+    private JsonWriter(OutputStream out, int size) {
+        this.out = out;
+        this.buffer = new byte[size];
+        this.flushAt = out != null ? size : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return this thread's writer, emptied, collecting in memory until
+     * {@code limit} bytes and sending everything to {@code overflow} from
+     * there on; its buffer is only valid until the next call
+     */
+    static JsonWriter get(OutputStream overflow, int limit) {
+        JsonWriter writer = WRITERS.get();
+        if (writer.buffer.length > POOLED_SIZE) {
+            writer.buffer = new byte[POOLED_SIZE];
+        }
+        writer.count = 0;
+        writer.flushed = 0;
+        writer.depth = 0;
+        writer.afterName = false;
+        writer.out = overflow;
+        writer.flushAt = overflow != null ? Math.max(1024, limit) : Integer.MAX_VALUE;
+        return writer;
+    }
+
+    /** @return value as JSON text */
+    public static String toJson(Object value) {
+        JsonWriter json = new JsonWriter();
+        try {
+            json.value(value);
+        } catch (IOException er) {
+            throw new IllegalStateException(er); // there is no stream to fail
+        }
+        return json.toString();
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /** Starts a member of the current object; its value comes next. */
+    public JsonWriter name(String name) throws IOException {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("name outside an object");
+        }
+        separate();
+        string(name);
+        put((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException {
+        beforeValue();
+        number(value);
+        return this;
+    }
+
+    /** NaN and the infinities, which JSON cannot hold, are written as null. */
+    public JsonWriter value(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return nullValue();
+        }
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            return value((long) value);
+        }
+        beforeValue();
+        ascii(Double.toString(value));
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        put(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        beforeValue();
+        put(NULL);
+        return this;
+    }
+
+    /**
+     * Writes any value: null, CharSequence, Number, Boolean, Map (keys as
+     * strings), Iterable, array, or a plain object as an object of its
+     * public fields and getters. Anything else is written as its toString().
+     */
+    public JsonWriter value(Object value) throws IOException {
+        if (value == null) {
+            return nullValue();
+        }
+        if (value instanceof CharSequence) {
+            return value(value.toString());
+        }
+        if (value instanceof Number) {
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return value(((Number) value).longValue());
+            }
+            if (value instanceof Double || value instanceof Float) {
+                return value(((Number) value).doubleValue());
+            }
+            beforeValue();
+            ascii(value.toString()); // BigDecimal, BigInteger and the like
+            return this;
+        }
+        if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        if (value instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof Iterable) {
+            beginArray();
+            for (Object item : (Iterable<?>) value) {
+                value(item);
+            }
+            return endArray();
+        }
+        if (value.getClass().isArray()) {
+            beginArray();
+            for (int i = 0, n = Array.getLength(value); i < n; i++) {
+                value(Array.get(value, i));
+            }
+            return endArray();
+        }
+        Property[] properties = properties(value.getClass());
+        if (properties.length == 0) {
+            return value(value.toString()); // Character, enums, and objects without properties
+        }
+        beginObject();
+        for (Property property : properties) {
+            name(property.name);
+            value(property.get(value));
+        }
+        return endObject();
+    }
+
+    /** Sends what is buffered to the stream, if there is one, and flushes it. */
+    public void flush() throws IOException {
+        if (out != null) {
+            drain();
+            out.flush();
+        }
+    }
+
+    /** @return the JSON written so far by a writer without a stream */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, HttpRequest.UTF_8);
+    }
+
+    //for the server's pooled writer: the buffered bytes, valid until the next use
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return count;
+    }
+
+    //whether part of the JSON has already gone to the overflow stream
+    boolean hasOverflowed() {
+        return flushed > 0;
+    }
+
+    //lets go of the overflow stream once the server is done with the pooled writer
+    void release() {
+        out = null;
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        beforeValue();
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("JSON nested deeper than " + MAX_DEPTH + ", a cycle?");
+        }
+        if (depth == started.length) {
+            started = Arrays.copyOf(started, depth * 2);
+        }
+        started[depth++] = false;
+        put((byte) bracket);
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        if (depth == 0 || afterName) {
+            throw new IllegalStateException("unbalanced " + bracket);
+        }
+        depth--;
+        put((byte) bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            separate();
+        }
+    }
+
+    private void separate() throws IOException {
+        if (started[depth - 1]) {
+            put((byte) ',');
+        }
+        started[depth - 1] = true;
+    }
+
+    //escapes per RFC 8259, plus U+2028 and U+2029 so the output is also valid JavaScript
+    private void string(String value) throws IOException {
+        put((byte) '"');
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                put((byte) c);
+            } else if (c == '"' || c == '\\') {
+                put((byte) '\\');
+                put((byte) c);
+            } else if (c == '\n') {
+                escape('n');
+            } else if (c == '\r') {
+                escape('r');
+            } else if (c == '\t') {
+                escape('t');
+            } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                ensure(6);
+                buffer[count++] = '\\';
+                buffer[count++] = 'u';
+                buffer[count++] = HEX[c >> 12 & 0xf];
+                buffer[count++] = HEX[c >> 8 & 0xf];
+                buffer[count++] = HEX[c >> 4 & 0xf];
+                buffer[count++] = HEX[c & 0xf];
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[count++] = (byte) (0xc0 | c >> 6);
+                buffer[count++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                ensure(4);
+                buffer[count++] = (byte) (0xf0 | cp >> 18);
+                buffer[count++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buffer[count++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buffer[count++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                put((byte) '?'); // unpaired, not encodable
+            } else {
+                ensure(3);
+                buffer[count++] = (byte) (0xe0 | c >> 12);
+                buffer[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        put((byte) '"');
+    }
+
+    private void escape(char c) throws IOException {
+        ensure(2);
+        buffer[count++] = '\\';
+        buffer[count++] = (byte) c;
+    }
+
+    private void number(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void ascii(String text) throws IOException {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        ensure(1);
+        buffer[count++] = b;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensure(int more) throws IOException {
+        if (count + more <= buffer.length && count < flushAt) {
+            return;
+        }
+        if (count >= flushAt) {
+            drain();
+        }
+        if (count + more > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + more));
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            flushed += count;
+            count = 0;
+        }
+    }
+
+    private static Property[] properties(Class<?> type) {
+        Property[] properties = PROPERTIES.get(type);
+        if (properties == null) {
+            properties = Property.of(type);
+            PROPERTIES.putIfAbsent(type, properties);
+        }
+        return properties;
+    }
+
+    /** A public instance field or getter of a plain object. */
+    private static final class Property {
+
+        final String name;
+        private final Field field;
+        private final Method getter;
+
+        private Property(String name, Field field, Method getter) {
+            this.name = name;
+            this.field = field;
+            this.getter = getter;
+        }
+
+        Object get(Object target) throws IOException {
+            try {
+                return field != null ? field.get(target) : getter.invoke(target);
+            } catch (ReflectiveOperationException er) {
+                throw new IOException("unable to read " + name + " of " + target.getClass().getName(), er);
+            }
+        }
+
+        //nothing for JDK and Android classes, whose internals are not data
+        static Property[] of(Class<?> type) {
+            List<Property> properties = new ArrayList<>();
+            String pkg = type.getName();
+            if (pkg.startsWith("java.") || pkg.startsWith("javax.") || pkg.startsWith("android.") || type.isEnum()) {
+                return new Property[0];
+            }
+            List<String> names = new ArrayList<>();
+            for (Field field : type.getFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true); // public fields of a non-public class
+                    properties.add(new Property(field.getName(), field, null));
+                    names.add(field.getName());
+                }
+            }
+            for (Method method : type.getMethods()) {
+                String name = getterName(method);
+                if (name != null && !names.contains(name)) {
+                    method.setAccessible(true);
+                    properties.add(new Property(name, null, method));
+                    names.add(name);
+                }
+            }
+            return properties.toArray(new Property[0]);
+        }
+
+        private static String getterName(Method method) {
+            String name = method.getName();
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterTypes().length != 0
+                    || method.getDeclaringClass() == Object.class) {
+                return null;
+            }
+            int prefix = name.startsWith("get") ? 3 : name.startsWith("is")
+                    && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class) ? 2 : 0;
+            if (prefix == 0 || name.length() == prefix || method.getReturnType() == void.class) {
+                return null;
+            }
+            return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package androidhttpweb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only memory mappings of large static files, shared by every
+ * connection that downloads the same file, so concurrent downloads read one
+ * page-cache view instead of each opening and copying the file. Mappings
+ * are reference counted: one reference belongs to the cache and one to each
+ * response still being written. A mapping is unmapped once it has been
+ * evicted, or replaced because the file changed, and the last response
+ * using it is done, which keeps the mapped total near {@code maxBytes}.
+ * <p>
+ * Files should be replaced by renaming a new file into place; truncating
+ * a file while it is mapped makes reads of the lost pages fail.
+ */
+public class MappedFileCache {
+
+    /** One mapped file; {@link #release()} every successful {@link MappedFileCache#acquire}. */
+    static final class Mapping {
+
+        final long size;
+        final long lastModified;
+        private final MappedByteBuffer buffer;
+        //the cache's reference plus one per response using it, 0 once unmapped
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Mapping(MappedByteBuffer buffer, long size, long lastModified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** @return false when the mapping was already released for good */
+        boolean retain() {
+            while (true) {
+                int count = refs.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+
+        /** @return an independent view of {@code count} bytes from {@code position}, valid while retained */
+        ByteBuffer slice(long position, long count) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit((int) (position + count)).position((int) position);
+            return view.slice();
+        }
+    }
+
+    private final long maxBytes;
+    private final long minFileSize;
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes    total size of the files kept mapped
+     * @param minFileSize smaller files are left to {@link StaticFileCache} and transferTo
+     */
+    public MappedFileCache(long maxBytes, long minFileSize) {
+        this.maxBytes = maxBytes;
+        this.minFileSize = minFileSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** @return bytes of the mappings held by the cache, not counting evicted ones still being sent */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return mappings.size();
+    }
+
+    /** Drops every mapping; those still being sent are unmapped when their responses finish. */
+    public synchronized void clear() {
+        for (Mapping mapping : mappings.values()) {
+            mapping.release();
+        }
+        mappings.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the file's mapping with a reference taken for the caller, or
+     * null when the file is missing, outside the size bounds or cannot be mapped
+     */
+    Mapping acquire(File file) {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (lastModified == 0 || length < minFileSize || length > maxBytes || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        String key = file.getPath();
+        synchronized (this) {
+            Mapping mapping = mappings.get(key);
+            if (mapping != null && mapping.size == length && mapping.lastModified == lastModified && mapping.retain()) {
+                hits.incrementAndGet();
+                return mapping;
+            }
+            if (mapping != null) {
+                remove(key, mapping); // the file changed
+            }
+        }
+        misses.incrementAndGet();
+        Mapping created;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the channel is closed
+            created = new Mapping(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length), length, lastModified);
+        } catch (IOException er) {
+            return null;
+        }
+        created.retain();
+        put(key, created);
+        return created;
+    }
+
+    private synchronized void put(String key, Mapping mapping) {
+        Mapping previous = mappings.put(key, mapping);
+        if (previous != null) {
+            size -= previous.size;
+            previous.release();
+        }
+        size += mapping.size;
+        Iterator<Map.Entry<String, Mapping>> eldest = mappings.entrySet().iterator();
+        while (size > maxBytes && eldest.hasNext()) {
+            Mapping evicted = eldest.next().getValue();
+            eldest.remove();
+            size -= evicted.size;
+            evicted.release();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(String key, Mapping mapping) {
+        if (mappings.get(key) == mapping) {
+            mappings.remove(key);
+            size -= mapping.size;
+            mapping.release();
+        }
+    }
+
+    /**
+     * Unmaps right away instead of when the buffer is garbage collected.
+     * There is no public API for it: Java 9+ has Unsafe.invokeCleaner, Java 8
+     * the buffer's cleaner; elsewhere, Android included, the GC does it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception | LinkageError notJava9) {
+            // fall through
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception | LinkageError ignored) {
+            // left to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package androidhttpweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Streaming multipart/form-data decoder. Body bytes are fed as they arrive
+ * and scanned for the boundary; file parts go straight to a temporary file
+ * or an {@link UploadSink} and plain fields are kept as Strings, so memory
+ * use does not depend on the upload size.
+ * <p>
+ * Errors are reported like {@link HttpRequestParser} does, as a status code
+ * from {@link #getError()}.
+ */
+final class MultipartParser {
+
+    private static final int PREAMBLE = 0;
+    private static final int AFTER_BOUNDARY = 1;
+    private static final int PART_HEADERS = 2;
+    private static final int PART_DATA = 3;
+    private static final int END = 4;
+    private static final int ERROR = 5;
+
+    private static final int MAX_PART_HEADER_SIZE = 8 * 1024;
+    private static final int MAX_PARTS = 256;
+
+    private final byte[] delimiter;
+    private final UploadSink sink;
+    private final Map<String, String> fields = new LinkedHashMap<>();
+    private final List<UploadedFile> files = new ArrayList<>();
+    private int state = PREAMBLE;
+    // the first boundary may come without a CRLF before it
+    private int matched = 2;
+    private int carry = 2;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private int headerBytes;
+    private boolean dash;
+    private String disposition;
+    private String partType;
+    private int parts;
+    private long total;
+    private OutputStream current;
+    private UploadedFile currentFile;
+    private ByteArrayOutputStream currentField;
+    private String currentName;
+    private String error;
+
+    private MultipartParser(String boundary, UploadSink sink) {
+        this.delimiter = ("\r\n--" + boundary).getBytes(HttpRequest.UTF_8);
+        this.sink = sink;
+    }
+
+    static boolean isMultipart(HttpRequest request) {
+        String type = request.getHeader("Content-Type");
+        return type != null && type.regionMatches(true, 0, TinyWebServer.MULTIPART_FORM_DATA_HEADER, 0,
+                TinyWebServer.MULTIPART_FORM_DATA_HEADER.length());
+    }
+
+    /** @return a parser for the request's boundary; one without a boundary reports 400 */
+    static MultipartParser forRequest(HttpRequest request, UploadSink sink) {
+        Matcher boundary = TinyWebServer.BOUNDARY_PATTERN.matcher(request.getHeader("Content-Type"));
+        String value = boundary.find() ? boundary.group(2).trim() : "";
+        MultipartParser parser = new MultipartParser(value, sink);
+        if (value.isEmpty() || value.length() > 70) {
+            parser.fail(TinyWebServer.BAD_REQUEST);
+        }
+        return parser;
+    }
+
+    /** @return status code to answer with, or null */
+    String getError() {
+        return error;
+    }
+
+    Map<String, String> getFields() {
+        return fields;
+    }
+
+    List<UploadedFile> getFiles() {
+        return files;
+    }
+
+    void write(byte[] buf, int off, int len) {
+        total += len;
+        if (total > TinyWebServer.MAX_UPLOAD_SIZE) {
+            fail(TinyWebServer.PAYLOAD_TOO_LARGE);
+        }
+        int pos = off;
+        int end = off + len;
+        while (pos < end && state != END && state != ERROR) {
+            if (state == AFTER_BOUNDARY) {
+                pos = afterBoundary(buf, pos, end);
+            } else if (state == PART_HEADERS) {
+                pos = partHeaders(buf, pos, end);
+            } else {
+                pos = scan(buf, pos, end);
+            }
+        }
+    }
+
+    /** Called at the end of the request body, which must have closed the last part. */
+    void finish() {
+        if (state != END && state != ERROR) {
+            fail(TinyWebServer.BAD_REQUEST);
+        }
+    }
+
+    /** Closes any open part and deletes the temporary files. */
+    void discard() {
+        closeCurrent();
+        for (UploadedFile file : files) {
+            if (file.file != null) {
+                file.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Looks for the delimiter, passing everything before it on as part data.
+     * Delimiter bytes that may continue in the next buffer are held back in
+     * {@link #carry}; a boundary cannot contain CR, so after a mismatch the
+     * search simply restarts.
+     */
+    private int scan(byte[] buf, int pos, int end) {
+        int runStart = pos;
+        for (int i = pos; i < end; i++) {
+            byte b = buf[i];
+            if (b == delimiter[matched]) {
+                if (++matched == delimiter.length) {
+                    int runEnd = i + 1 - (delimiter.length - carry);
+                    if (runEnd > runStart) {
+                        data(buf, runStart, runEnd - runStart);
+                    }
+                    matched = 0;
+                    carry = 0;
+                    endPart();
+                    if (state != ERROR) {
+                        state = AFTER_BOUNDARY;
+                        dash = false;
+                    }
+                    return i + 1;
+                }
+            } else if (matched > 0) {
+                if (carry > 0) {
+                    data(delimiter, 0, carry);
+                    carry = 0;
+                }
+                matched = b == delimiter[0] ? 1 : 0;
+            }
+        }
+        int runEnd = end - (matched - carry);
+        if (runEnd > runStart) {
+            data(buf, runStart, runEnd - runStart);
+        }
+        carry = matched;
+        return end;
+    }
+
+    //"--" ends the body, CRLF (after optional padding) starts the next part
+    private int afterBoundary(byte[] buf, int pos, int end) {
+        for (; pos < end; pos++) {
+            byte b = buf[pos];
+            if (dash) {
+                if (b != '-') {
+                    fail(TinyWebServer.BAD_REQUEST);
+                } else {
+                    state = END;
+                }
+                return pos + 1;
+            }
+            if (b == '-') {
+                dash = true;
+            } else if (b == '\n') {
+                state = PART_HEADERS;
+                lineLength = 0;
+                headerBytes = 0;
+                disposition = null;
+                partType = null;
+                return pos + 1;
+            } else if (b != '\r' && b != ' ' && b != '\t') {
+                fail(TinyWebServer.BAD_REQUEST);
+                return pos + 1;
+            }
+        }
+        return end;
+    }
+
+    private int partHeaders(byte[] buf, int pos, int end) {
+        for (; pos < end; pos++) {
+            byte b = buf[pos];
+            if (++headerBytes > MAX_PART_HEADER_SIZE) {
+                fail(TinyWebServer.REQUEST_HEADER_FIELDS_TOO_LARGE);
+                return pos + 1;
+            }
+            if (b != '\n') {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+                continue;
+            }
+            if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                lineLength--;
+            }
+            if (lineLength == 0) {
+                startPart();
+                return pos + 1;
+            }
+            String header = new String(line, 0, lineLength, HttpRequest.UTF_8);
+            lineLength = 0;
+            Matcher m = TinyWebServer.CONTENT_DISPOSITION_PATTERN.matcher(header);
+            if (m.matches()) {
+                disposition = m.group(2);
+            } else if ((m = TinyWebServer.CONTENT_TYPE_PATTERN.matcher(header)).matches()) {
+                partType = m.group(2).trim();
+            }
+        }
+        return end;
+    }
+
+    private void startPart() {
+        if (++parts > MAX_PARTS) {
+            fail(TinyWebServer.PAYLOAD_TOO_LARGE);
+            return;
+        }
+        String name = null;
+        String fileName = null;
+        if (disposition != null) {
+            Matcher attribute = TinyWebServer.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(disposition);
+            while (attribute.find()) {
+                if (attribute.group(1).equalsIgnoreCase("name")) {
+                    name = attribute.group(2);
+                } else if (attribute.group(1).equalsIgnoreCase("filename")) {
+                    fileName = attribute.group(2);
+                }
+            }
+        }
+        if (name == null) {
+            fail(TinyWebServer.BAD_REQUEST);
+            return;
+        }
+        state = PART_DATA;
+        if (fileName == null) {
+            currentName = name;
+            currentField = new ByteArrayOutputStream();
+            return;
+        }
+        if (fileName.isEmpty()) {
+            return; // file input left empty, nothing to store
+        }
+        // browsers on Windows may send the full path
+        fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        currentFile = new UploadedFile(name, fileName, partType != null ? partType : "application/octet-stream");
+        files.add(currentFile);
+        try {
+            if (sink != null) {
+                current = sink.open(currentFile);
+            } else {
+                currentFile.file = File.createTempFile("upload", ".tmp", TinyWebServer.uploadDir());
+                current = new FileOutputStream(currentFile.file);
+            }
+        } catch (IOException er) {
+            fail(TinyWebServer.INTERNAL_ERROR);
+        }
+    }
+
+    private void data(byte[] buf, int off, int len) {
+        if (state != PART_DATA) {
+            return; // preamble
+        }
+        if (currentField != null) {
+            if (currentField.size() + len > TinyWebServer.MAX_UPLOAD_FIELD_SIZE) {
+                fail(TinyWebServer.PAYLOAD_TOO_LARGE);
+                return;
+            }
+            currentField.write(buf, off, len);
+        } else if (current != null) {
+            try {
+                current.write(buf, off, len);
+                currentFile.size += len;
+            } catch (IOException er) {
+                fail(TinyWebServer.INTERNAL_ERROR);
+            }
+        }
+    }
+
+    private void endPart() {
+        if (state != PART_DATA) {
+            return;
+        }
+        if (currentField != null) {
+            fields.put(currentName, new String(currentField.toByteArray(), HttpRequest.UTF_8));
+            currentField = null;
+        }
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException er) {
+                fail(TinyWebServer.INTERNAL_ERROR);
+            }
+            current = null;
+        }
+        currentFile = null;
+    }
+
+    private void closeCurrent() {
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+            current = null;
+        }
+        currentField = null;
+    }
+
+    private void fail(String status) {
+        if (error == null) {
+            error = status;
+        }
+        state = ERROR;
+        closeCurrent();
+    }
+}
@@ -0,0 +1,663 @@
+package androidhttpweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking connection handling for {@link TinyWebServer#USE_NIO}.
+ * One or a few Selector loops multiplex every client socket, buffer the
+ * incoming bytes into an {@link HttpRequestParser} and hand every complete
+ * request to {@link TinyWebServer#handleRequest}, so idle keep-alive clients
+ * no longer hold a thread each. Idle and slow connections are closed by a
+ * per-loop {@link TimerWheel}.
+ */
+class NioEventLoop implements Runnable {
+
+    private static final String TAG = "NioEventLoop";
+    private static final int READ_BUFFER_SIZE = TinyWebServer.READ_BUFFER_SIZE;
+    private static final long TICK_MILLIS = 250;
+    private static final int WHEEL_SLOTS = 256;
+    //respond's answer for a request parked until its WebApi future completes
+    private static final Output SUSPENDED = new Output();
+
+    private final TinyWebServer server;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Completion> completed = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final TimerWheel timeouts = new TimerWheel(TICK_MILLIS, WHEEL_SLOTS, System.currentTimeMillis());
+    private final List<TimerWheel.Timeout> expired = new ArrayList<>();
+    private NioEventLoop[] group;
+    private int next;
+
+    private NioEventLoop(TinyWebServer server, ServerSocketChannel serverChannel) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Runs {@code count} selector loops until the server channel is closed.
+     * The first loop accepts connections on the calling thread and spreads
+     * them round-robin over the group.
+     */
+    static void runGroup(TinyWebServer server, ServerSocketChannel serverChannel, int count) {
+        NioEventLoop[] group = new NioEventLoop[Math.max(1, count)];
+        try {
+            for (int i = 0; i < group.length; i++) {
+                group[i] = new NioEventLoop(server, serverChannel);
+                group[i].group = group;
+            }
+            serverChannel.register(group[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            ServerLog.e(TAG, "runGroup: unable to open selector " + e.getMessage());
+            return;
+        }
+        for (int i = 1; i < group.length; i++) {
+            Thread t = new Thread(group[i], TAG + "-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        group[0].run();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select(TICK_MILLIS);
+                registerPending();
+                drainCompleted();
+                expireConnections();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isReadable()) {
+                                read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(key);
+                            }
+                            if (key.isValid()) {
+                                touch((Connection) key.attachment());
+                            }
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            ServerLog.e(TAG, "run: selector loop stopped " + e.getMessage());
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.socket().setTcpNoDelay(true);
+            NioEventLoop loop = group[next++ % group.length];
+            loop.pending.add(client);
+            if (loop != this) {
+                loop.selector.wakeup();
+            }
+        }
+        registerPending();
+    }
+
+    private void registerPending() throws IOException {
+        SocketChannel client;
+        while ((client = pending.poll()) != null) {
+            TinyWebServer.getMetrics().connectionOpened();
+            Connection conn = new Connection();
+            conn.key = client.register(selector, SelectionKey.OP_READ, conn);
+            touch(conn);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        readBuffer.clear();
+        int n = channel.read(readBuffer);
+        if (n == -1) {
+            close(key);
+            return;
+        }
+        TinyWebServer.getMetrics().bytesRead(n);
+        conn.append(readBuffer.array(), n);
+        processRequests(key, conn);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection conn = (Connection) key.attachment();
+        if (conn.outbound.writeTo(channel)) {
+            conn.outbound = null;
+            if (conn.closeAfterWrite) {
+                close(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // requests pipelined behind the one just answered
+            processRequests(key, conn);
+        }
+    }
+
+    /**
+     * Answers buffered requests in order; stops as soon as a response cannot
+     * be written out completely and waits for OP_WRITE. With a connection
+     * executor the request runs on a worker and the response comes back
+     * through {@link #completed}.
+     */
+    private void processRequests(final SelectionKey key, final Connection conn) throws IOException {
+        final HttpRequestParser parser = conn.parser;
+        while (!conn.busy && !conn.closeAfterWrite && conn.outbound == null && key.isValid() && conn.size > 0) {
+            conn.consume(parser.parse(conn.data, 0, conn.size));
+            if (parser.hasError()) {
+                TinyWebServer.getMetrics().parseFailed();
+                conn.size = 0;
+                conn.closeAfterWrite = true;
+                send(key, conn, Output.of(TinyWebServer.errorResponse(parser.getError())));
+                return;
+            }
+            if (parser.takeExpectContinue() && !parser.isComplete()) {
+                send(key, conn, Output.of(HttpRequestParser.CONTINUE_RESPONSE));
+            }
+            if (!parser.isComplete()) {
+                return;
+            }
+
+            Executor executor = TinyWebServer.getConnectionExecutor();
+            if (executor == null) {
+                Output response = respond(key, conn, true);
+                if (response == SUSPENDED) {
+                    conn.busy = true;
+                    key.interestOps(0);
+                    return;
+                }
+                send(key, conn, response);
+                continue;
+            }
+            conn.busy = true;
+            key.interestOps(0); // stop reading until the worker is done
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(key, respond(key, conn, false));
+                    }
+                });
+            } catch (RejectedExecutionException busy) {
+                TinyWebServer.getMetrics().connectionRejected();
+                conn.busy = false;
+                conn.size = 0;
+                conn.closeAfterWrite = true;
+                send(key, conn, Output.of(TinyWebServer.serviceUnavailableResponse()));
+            }
+        }
+    }
+
+    /**
+     * The connection's request and response objects stay untouched until
+     * the response is produced. A request whose WebApi method returned a
+     * future is parked without a thread: this returns {@link #SUSPENDED} and
+     * the response comes back through {@link #completed} once it is written.
+     *
+     * @return the response, or null when it failed and the connection is to be closed
+     */
+    private Output respond(final SelectionKey key, final Connection conn, boolean onLoopThread) {
+        final Output response = new Output();
+        response.channel = (SocketChannel) key.channel();
+        response.onLoopThread = onLoopThread;
+        CompletableFuture<Void> pending = null;
+        try {
+            conn.response.requestsLeft = TinyWebServer.MAX_KEEP_ALIVE_REQUESTS - ++conn.served;
+            pending = server.handleRequest(conn.parser.getRequest(), conn.response, response);
+            if (pending == null) {
+                return finish(conn, response, null);
+            }
+            pending.whenComplete((ignored, er) -> {
+                Output done = finish(conn, response, er);
+                conn.parser.reset();
+                conn.response.reset();
+                complete(key, done);
+            });
+            return SUSPENDED;
+        } catch (RuntimeException er) {
+            pending = null;
+            return finish(conn, response, er);
+        } finally {
+            if (pending == null) {
+                conn.parser.reset();
+                conn.response.reset();
+            }
+        }
+    }
+
+    private static Output finish(Connection conn, Output response, Throwable failure) {
+        if (failure != null) {
+            ServerLog.e(TAG, "respond: " + failure);
+            response.release();
+            return null;
+        }
+        if (!conn.response.keepAlive) {
+            conn.closeAfterWrite = true;
+        }
+        return response.finish();
+    }
+
+    //hands a response produced off the loop thread back to it
+    private void complete(SelectionKey key, Output response) {
+        if (response == SUSPENDED) {
+            return; // will complete later
+        }
+        completed.add(new Completion(key, response));
+        selector.wakeup();
+    }
+
+    private void send(SelectionKey key, Connection conn, Output response) throws IOException {
+        if (response == null) {
+            close(key);
+            return;
+        }
+        conn.outbound = response;
+        if (!response.writeTo((SocketChannel) key.channel())) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (conn.closeAfterWrite) {
+            close(key);
+        } else {
+            conn.outbound = null;
+        }
+    }
+
+    private void drainCompleted() {
+        Completion done;
+        while ((done = completed.poll()) != null) {
+            if (!done.key.isValid()) {
+                if (done.response != null) {
+                    done.response.release();
+                }
+                continue;
+            }
+            Connection conn = (Connection) done.key.attachment();
+            conn.busy = false;
+            try {
+                done.key.interestOps(SelectionKey.OP_READ);
+                send(done.key, conn, done.response);
+                processRequests(done.key, conn);
+                if (done.key.isValid()) {
+                    touch(conn);
+                }
+            } catch (IOException e) {
+                close(done.key);
+            }
+        }
+    }
+
+    /**
+     * Moves the connection's deadline: none while a worker has its request,
+     * the header deadline while a request is being received, otherwise the
+     * keep-alive timeout from now.
+     */
+    private void touch(Connection conn) {
+        long deadline = Long.MAX_VALUE;
+        if (conn.busy) {
+            conn.headerDeadline = 0;
+        } else if (conn.parser.isReadingHeaders() && TinyWebServer.HEADER_READ_TIMEOUT > 0) {
+            if (conn.headerDeadline == 0) {
+                conn.headerDeadline = System.currentTimeMillis() + TinyWebServer.HEADER_READ_TIMEOUT;
+            }
+            deadline = conn.headerDeadline;
+        } else {
+            conn.headerDeadline = 0;
+            if (TinyWebServer.KEEP_ALIVE_TIMEOUT > 0) {
+                deadline = System.currentTimeMillis() + TinyWebServer.KEEP_ALIVE_TIMEOUT;
+            }
+        }
+        timeouts.schedule(conn, deadline);
+    }
+
+    //clients that stayed silent too long, or trickled their headers, are dropped
+    private void expireConnections() {
+        timeouts.advance(System.currentTimeMillis(), expired);
+        for (TimerWheel.Timeout timeout : expired) {
+            Connection conn = (Connection) timeout;
+            if (!conn.key.isValid()) {
+                continue;
+            }
+            TinyWebServer.getMetrics().connectionTimedOut(conn.parser.isReadingHeaders());
+            if (conn.parser.isReadingHeaders() && conn.outbound == null) {
+                try {
+                    ((SocketChannel) conn.key.channel())
+                            .write(ByteBuffer.wrap(TinyWebServer.errorResponse(TinyWebServer.REQUEST_TIMEOUT)));
+                } catch (IOException ignored) {
+                }
+            }
+            close(conn.key);
+        }
+        expired.clear();
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        Object conn = key.attachment();
+        if (conn instanceof Connection && !((Connection) conn).cancelled) {
+            timeouts.cancel((Connection) conn);
+            TinyWebServer.getMetrics().connectionClosed();
+        }
+        if (conn instanceof Connection && !((Connection) conn).busy) {
+            ((Connection) conn).parser.reset(); // drops a partial upload; a worker resets its own
+        }
+        if (conn instanceof Connection && ((Connection) conn).outbound != null) {
+            ((Connection) conn).outbound.release();
+            ((Connection) conn).outbound = null;
+        }
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void shutdown() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+        }
+        if (group != null && group[0] == this) {
+            for (int i = 1; i < group.length; i++) {
+                group[i].selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Response collected in memory as a queue of byte and file segments and
+     * written out by the loop as the socket accepts it. File segments go out
+     * through {@link FileChannel#transferTo}.
+     */
+    static final class Output extends ConnectionOutput {
+
+        private final ArrayDeque<Object> segments = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[8];
+        //mappings some of the segments are slices of, released once sent
+        private List<MappedFileCache.Mapping> mappings;
+        //set for request responses, which sendNow may write straight to the socket
+        private SocketChannel channel;
+        private boolean onLoopThread;
+        //private selector sendNow waits on for the socket to drain
+        private Selector writable;
+
+        Output() {
+            super(new ByteArrayOutputStream());
+        }
+
+        static Output of(byte[] response) {
+            Output output = new Output();
+            output.segments.add(ByteBuffer.wrap(response));
+            return output;
+        }
+
+        @Override
+        void transferFrom(FileChannel file, long position, long count) throws IOException {
+            if (isDroppingBody()) {
+                file.close();
+                return;
+            }
+            countDirect(count);
+            cut();
+            segments.add(new FileRegion(file, position, count));
+        }
+
+        //the slice goes out like any other buffer, in gathering writes with the head
+        @Override
+        void writeMapped(MappedFileCache.Mapping mapping, long position, long count) throws IOException {
+            if (isDroppingBody()) {
+                return;
+            }
+            if (!mapping.retain()) {
+                throw new IOException("mapping released while in use");
+            }
+            if (mappings == null) {
+                mappings = new ArrayList<>(1);
+            }
+            mappings.add(mapping);
+            countDirect(count);
+            cut();
+            segments.add(mapping.slice(position, count));
+        }
+
+        //the head is copied since the caller reuses its buffer; the body is sent from where it is
+        @Override
+        void writeResponse(byte[] head, int headLength, byte[] body, int offset, int length) {
+            cut();
+            segments.add(ByteBuffer.wrap(Arrays.copyOf(head, headLength)));
+            if (body != null) {
+                segments.add(ByteBuffer.wrap(body, offset, length));
+            }
+            countDirect(headLength + (body != null ? length : 0));
+        }
+
+        @Override
+        boolean retainsBody() {
+            return true;
+        }
+
+        /**
+         * Writes straight to the socket, from the thread producing the
+         * response: the loop leaves the connection alone until the response
+         * is finished.
+         */
+        @Override
+        void sendNow() throws IOException {
+            if (channel == null) {
+                return; // goes out with the rest of the response
+            }
+            cut();
+            while (!writeTo(channel)) {
+                if (writable == null) {
+                    writable = Selector.open();
+                    channel.register(writable, SelectionKey.OP_WRITE);
+                }
+                if (writable.select(Math.max(0, TinyWebServer.WRITE_TIMEOUT)) == 0) {
+                    throw new IOException("client stopped reading");
+                }
+                writable.selectedKeys().clear();
+            }
+        }
+
+        @Override
+        boolean isEventLoop() {
+            return onLoopThread;
+        }
+
+        Output finish() {
+            cut();
+            closeWritable();
+            return this;
+        }
+
+        private void closeWritable() {
+            if (writable != null) {
+                try {
+                    writable.close();
+                } catch (IOException ignored) {
+                }
+                writable = null;
+            }
+        }
+
+        private void cut() {
+            ByteArrayOutputStream buffer = (ByteArrayOutputStream) out;
+            if (buffer.size() > 0) {
+                segments.add(ByteBuffer.wrap(buffer.toByteArray()));
+                buffer.reset();
+            }
+        }
+
+        /**
+         * Consecutive byte segments, typically a head and its body, go out
+         * in one gathering write.
+         *
+         * @return true once every segment has been written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            Object segment;
+            while ((segment = segments.peek()) != null) {
+                if (segment instanceof ByteBuffer) {
+                    int count = 0;
+                    for (Object next : segments) {
+                        if (!(next instanceof ByteBuffer) || count == gather.length) {
+                            break;
+                        }
+                        gather[count++] = (ByteBuffer) next;
+                    }
+                    channel.write(gather, 0, count);
+                    boolean complete = !gather[count - 1].hasRemaining();
+                    for (int i = 0; i < count && !gather[i].hasRemaining(); i++) {
+                        segments.poll();
+                    }
+                    Arrays.fill(gather, 0, count, null);
+                    if (!complete) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (!((FileRegion) segment).writeTo(channel)) {
+                    return false;
+                }
+                segments.poll();
+            }
+            releaseMappings();
+            return true;
+        }
+
+        void release() {
+            for (Object segment : segments) {
+                if (segment instanceof FileRegion) {
+                    ((FileRegion) segment).close();
+                }
+            }
+            segments.clear();
+            releaseMappings();
+            closeWritable();
+        }
+
+        private void releaseMappings() {
+            if (mappings != null) {
+                for (MappedFileCache.Mapping mapping : mappings) {
+                    mapping.release();
+                }
+                mappings = null;
+            }
+        }
+    }
+
+    private static final class FileRegion {
+
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        boolean writeTo(SocketChannel channel) throws IOException {
+            while (remaining > 0) {
+                long sent = file.transferTo(position, remaining, channel);
+                if (sent <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("file truncated while sending");
+                    }
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            close();
+            return true;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Response produced by a worker thread, written back by the loop. */
+    private static final class Completion {
+
+        final SelectionKey key;
+        final Output response;
+
+        Completion(SelectionKey key, Output response) {
+            this.key = key;
+            this.response = response;
+        }
+    }
+
+    /** Per-socket input accumulator, pending output and idle deadline. */
+    private static final class Connection extends TimerWheel.Timeout {
+
+        final HttpRequestParser parser = new HttpRequestParser();
+        final HttpResponse response = new HttpResponse();
+        byte[] data = new byte[READ_BUFFER_SIZE];
+        int size;
+        Output outbound;
+        boolean busy;
+        boolean closeAfterWrite;
+        SelectionKey key;
+        int served;
+        long headerDeadline;
+
+        void append(byte[] src, int len) {
+            if (size + len > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + len));
+            }
+            System.arraycopy(src, 0, data, size, len);
+            size += len;
+        }
+
+        void consume(int len) {
+            System.arraycopy(data, len, data, 0, size - len);
+            size -= len;
+        }
+    }
+}
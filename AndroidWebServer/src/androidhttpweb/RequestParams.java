@@ -0,0 +1,476 @@
+package androidhttpweb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * The {@code qparms} of a WebApi method: the query string and, for
+ * {@code application/x-www-form-urlencoded} requests, the body, read where
+ * they are. A parameter is only decoded when it is asked for, the whole set
+ * only when the map is iterated or counted.
+ * <pre>
+ * RequestParams params = (RequestParams) qparms;
+ * int page = params.getInt("page", 1);
+ * List&lt;String&gt; tags = params.getAll("tag");
+ * </pre>
+ * As a map it holds the last value of each name, null for an empty one,
+ * like {@link TinyWebServer#splitQuery}. Entries put by the server or the
+ * method hide parameters of the same name.
+ * <p>
+ * Shares the request's buffers, so like the request it must not be kept
+ * after the response has been written.
+ */
+public final class RequestParams extends HashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+    private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
+    //raw query, one char per byte as the request line was read
+    private String query;
+    //request with a form body, read on the first lookup since it may be spooled to disk
+    private HttpRequest form;
+    private byte[] body;
+    private int bodyLength;
+    //set once every parameter has been decoded into the map
+    private boolean materialized;
+
+    //where the last lookup found its value
+    private boolean foundInBody;
+    private int valueStart;
+    private int valueEnd;
+
+    /**
+     * @param query the raw query string, or null
+     * @param request supplies a form body when it is a urlencoded POST, may be null
+     */
+    RequestParams(String query, HttpRequest request) {
+        this.query = query != null && !query.isEmpty() ? query : null;
+        if (request != null && isForm(request)) {
+            this.form = request;
+        }
+    }
+
+    static boolean isForm(HttpRequest request) {
+        String type = request.getHeader("Content-Type");
+        return !request.isMultipart() && request.getBodyLength() > 0 && type != null
+                && type.regionMatches(true, 0, FORM_URLENCODED, 0, FORM_URLENCODED.length());
+    }
+
+    /** @return the last value of {@code name}, "" when it has none, or null when it is not there */
+    public String getString(String name) {
+        if (super.containsKey(name) || !isLazy()) {
+            Object value = super.get(name);
+            return value != null ? value.toString() : super.containsKey(name) ? "" : null;
+        }
+        return find(name) ? decode(foundInBody, valueStart, valueEnd) : null;
+    }
+
+    /**
+     * @return every value of {@code name} in request order, query first, ""
+     * for empty ones; read from the request even where the map was changed
+     */
+    public List<String> getAll(String name) {
+        List<String> values = new ArrayList<>(1);
+        collect(name, false, values);
+        collect(name, true, values);
+        if (values.isEmpty() && super.containsKey(name)) {
+            Object value = super.get(name);
+            values.add(value != null ? value.toString() : "");
+        }
+        return values;
+    }
+
+    /** @return the last value of {@code name} as an int, or {@code def} when missing or not a number */
+    public int getInt(String name, int def) {
+        long value = getLong(name, def);
+        return value == (int) value ? (int) value : def;
+    }
+
+    /** @return the last value of {@code name} as a long, or {@code def} when missing or not a number */
+    public long getLong(String name, long def) {
+        if (super.containsKey(name) || !isLazy()) {
+            if (super.get(name) == null) {
+                return def;
+            }
+            try {
+                return Long.parseLong(String.valueOf(super.get(name)).trim());
+            } catch (NumberFormatException er) {
+                return def;
+            }
+        }
+        if (!find(name)) {
+            return def;
+        }
+        int end = valueEnd;
+        int i = valueStart;
+        boolean negative = false;
+        if (i < end && (at(i) == '-' || at(i) == '+')) {
+            negative = at(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            return def;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int c = at(i);
+            if (c < '0' || c > '9' || value < (Long.MIN_VALUE + (c - '0')) / 10) {
+                return def; // not a digit, an escaped one, or too large
+            }
+            value = value * 10 - (c - '0'); // accumulated negative, so Long.MIN_VALUE fits
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            return def;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * @return true for true, 1, on or yes, false for false, 0, off or no
+     * (any case), {@code def} for anything else or a missing parameter
+     */
+    public boolean getBoolean(String name, boolean def) {
+        if (super.containsKey(name) || !isLazy()) {
+            Object value = super.get(name);
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            String text = String.valueOf(value);
+            return is(text, "true", "1", "on", "yes") || !is(text, "false", "0", "off", "no") && def;
+        }
+        if (!find(name)) {
+            return def;
+        }
+        if (valueIs("true") || valueIs("1") || valueIs("on") || valueIs("yes")) {
+            return true;
+        }
+        if (valueIs("false") || valueIs("0") || valueIs("off") || valueIs("no")) {
+            return false;
+        }
+        return def;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (super.containsKey(key) || !(key instanceof String) || !isLazy()) {
+            return super.get(key);
+        }
+        if (!find((String) key)) {
+            return null;
+        }
+        String value = valueStart < valueEnd ? decode(foundInBody, valueStart, valueEnd) : null;
+        super.put((String) key, value); // asked for once, likely asked for again
+        return value;
+    }
+
+    @Override
+    public Object getOrDefault(Object key, Object defaultValue) {
+        Object value = get(key);
+        return value != null || containsKey(key) ? value : defaultValue;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (super.containsKey(key) || !(key instanceof String) || !isLazy()) {
+            return super.containsKey(key);
+        }
+        return find((String) key);
+    }
+
+    @Override
+    public Object putIfAbsent(String key, Object value) {
+        return containsKey(key) ? get(key) : super.put(key, value);
+    }
+
+    //everything below needs the whole set, decoded once into the map itself
+
+    @Override
+    public int size() {
+        materialize();
+        return super.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        materialize();
+        return super.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        materialize();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        materialize();
+        return super.remove(key);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        materialize();
+        return super.remove(key, value);
+    }
+
+    @Override
+    public void clear() {
+        query = null;
+        form = null;
+        body = null;
+        materialized = true;
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        materialize();
+        return super.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        materialize();
+        return super.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        materialize();
+        return super.entrySet();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        materialize();
+        super.forEach(action);
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super String, ? super Object, ?> function) {
+        materialize();
+        super.replaceAll(function);
+    }
+
+    @Override
+    public Object computeIfAbsent(String key, Function<? super String, ?> mappingFunction) {
+        materialize();
+        return super.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ?> remappingFunction) {
+        materialize();
+        return super.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public Object compute(String key, BiFunction<? super String, ? super Object, ?> remappingFunction) {
+        materialize();
+        return super.compute(key, remappingFunction);
+    }
+
+    @Override
+    public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+        materialize();
+        return super.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public boolean replace(String key, Object oldValue, Object newValue) {
+        materialize();
+        return super.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public Object replace(String key, Object value) {
+        materialize();
+        return super.replace(key, value);
+    }
+
+    @Override
+    public Object clone() {
+        materialize();
+        return super.clone();
+    }
+
+    private boolean isLazy() {
+        return !materialized && (query != null || form != null);
+    }
+
+    //decodes every parameter not already in the map; later values of a name replace earlier ones
+    private void materialize() {
+        if (!isLazy()) {
+            return;
+        }
+        HashMap<String, String> params = new HashMap<>();
+        scan(false, params);
+        scan(true, params);
+        materialized = true;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!super.containsKey(param.getKey())) {
+                super.put(param.getKey(), param.getValue());
+            }
+        }
+    }
+
+    private void scan(boolean inBody, HashMap<String, String> params) {
+        int end = length(inBody);
+        for (int start = 0; start < end; ) {
+            int pairEnd = indexOf('&', inBody, start, end);
+            int eq = indexOf('=', inBody, start, pairEnd);
+            if (pairEnd > start) {
+                String value = eq + 1 < pairEnd ? decode(inBody, eq + 1, pairEnd) : null;
+                params.put(decode(inBody, start, eq), value);
+            }
+            start = pairEnd + 1;
+        }
+    }
+
+    private void collect(String name, boolean inBody, List<String> values) {
+        int end = length(inBody);
+        for (int start = 0; start < end; ) {
+            int pairEnd = indexOf('&', inBody, start, end);
+            int eq = indexOf('=', inBody, start, pairEnd);
+            if (pairEnd > start && keyIs(name, inBody, start, eq)) {
+                values.add(eq < pairEnd ? decode(inBody, eq + 1, pairEnd) : "");
+            }
+            start = pairEnd + 1;
+        }
+    }
+
+    //sets foundInBody, valueStart and valueEnd to the last value of name
+    private boolean find(String name) {
+        return findIn(name, true) || findIn(name, false);
+    }
+
+    private boolean findIn(String name, boolean inBody) {
+        int end = length(inBody);
+        boolean found = false;
+        for (int start = 0; start < end; ) {
+            int pairEnd = indexOf('&', inBody, start, end);
+            int eq = indexOf('=', inBody, start, pairEnd);
+            if (pairEnd > start && keyIs(name, inBody, start, eq)) {
+                found = true;
+                foundInBody = inBody;
+                valueStart = Math.min(eq + 1, pairEnd);
+                valueEnd = pairEnd;
+            }
+            start = pairEnd + 1;
+        }
+        return found;
+    }
+
+    //compares the key's decoded bytes with name's UTF-8 bytes, decoding nothing into memory
+    private boolean keyIs(String name, boolean inBody, int start, int end) {
+        byte[] utf8 = null;
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) >= 0x80) {
+                utf8 = name.getBytes(HttpRequest.UTF_8);
+                length = utf8.length;
+                break;
+            }
+        }
+        int n = 0;
+        for (int i = start; i < end; n++) {
+            int c = at(inBody, i);
+            int step = 1;
+            if (c == '+') {
+                c = ' ';
+            } else if (c == '%' && i + 2 < end && hex(at(inBody, i + 1)) >= 0 && hex(at(inBody, i + 2)) >= 0) {
+                c = hex(at(inBody, i + 1)) << 4 | hex(at(inBody, i + 2));
+                step = 3;
+            }
+            if (n >= length || c != (utf8 != null ? utf8[n] & 0xff : name.charAt(n))) {
+                return false;
+            }
+            i += step;
+        }
+        return n == length;
+    }
+
+    //the found value, without escapes, equals word in any case
+    private boolean valueIs(String word) {
+        if (valueEnd - valueStart != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if ((at(valueStart + i) | 0x20) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean is(String text, String... words) {
+        for (String word : words) {
+            if (word.equalsIgnoreCase(text.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //percent escapes and '+' decoded, then read as UTF-8; a malformed escape is kept as it is
+    private String decode(boolean inBody, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        int n = 0;
+        for (int i = start; i < end; ) {
+            int c = at(inBody, i);
+            if (c == '+') {
+                c = ' ';
+            } else if (c == '%' && i + 2 < end && hex(at(inBody, i + 1)) >= 0 && hex(at(inBody, i + 2)) >= 0) {
+                c = hex(at(inBody, i + 1)) << 4 | hex(at(inBody, i + 2));
+                i += 2;
+            }
+            bytes[n++] = (byte) c;
+            i++;
+        }
+        return new String(bytes, 0, n, HttpRequest.UTF_8);
+    }
+
+    private static int hex(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        c |= 0x20;
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    private int indexOf(char c, boolean inBody, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (at(inBody, i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private int length(boolean inBody) {
+        if (!inBody) {
+            return query != null ? query.length() : 0;
+        }
+        if (form != null && body == null) {
+            body = form.getBody(); // loads a spooled body
+            bodyLength = form.getBodyLength();
+        }
+        return form != null ? bodyLength : 0;
+    }
+
+    private int at(boolean inBody, int i) {
+        return inBody ? body[i] & 0xff : query.charAt(i) & 0xff;
+    }
+
+    private int at(int i) {
+        return at(foundInBody, i);
+    }
+}
@@ -0,0 +1,171 @@
+package androidhttpweb;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes a response head straight into a reusable per-thread byte buffer.
+ * Status lines, common header lines and Content-Type lines are encoded once
+ * and copied in; the Date line is formatted at most once per second and
+ * shared by all threads. Replaces a SimpleDateFormat, PrintWriter and a
+ * handful of String concatenations per response.
+ */
+final class ResponseWriter {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] CRLF = encode("\r\n");
+    private static final byte[] KEEP_ALIVE = encode("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = encode("Connection: close\r\n");
+    private static final byte[] KEEP_ALIVE_TIMEOUT = encode("Keep-Alive: timeout=");
+    private static final byte[] KEEP_ALIVE_MAX = encode(", max=");
+    private static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+    //cached lines are few: one per status code and per type in the content type table
+    private static final int MAX_CACHED_LINES = 256;
+    private static final ConcurrentHashMap<String, byte[]> STATUS_LINES = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<>();
+    private static volatile DateLine dateLine = new DateLine(0, null);
+
+    private static final ThreadLocal<ResponseWriter> WRITERS = new ThreadLocal<ResponseWriter>() {
+        @Override
+        protected ResponseWriter initialValue() {
+            return new ResponseWriter();
+        }
+    };
+
+    private byte[] buffer = new byte[512];
+    private int length;
+
+    private ResponseWriter() { }
+
+    /** @return this thread's writer, emptied; its buffer is only valid until the next call */
+    static ResponseWriter get() {
+        ResponseWriter writer = WRITERS.get();
+        writer.length = 0;
+        return writer;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    ResponseWriter statusLine(String status) {
+        byte[] line = STATUS_LINES.get(status);
+        if (line == null) {
+            line = encode("HTTP/1.1 " + status + " \r\n");
+            if (STATUS_LINES.size() < MAX_CACHED_LINES) {
+                STATUS_LINES.put(status, line);
+            }
+        }
+        return bytes(line);
+    }
+
+    ResponseWriter contentType(String type) {
+        byte[] line = CONTENT_TYPE_LINES.get(type);
+        if (line == null) {
+            line = encode("Content-Type: " + type + "\r\n");
+            // multipart/byteranges types carry a fresh boundary and are not worth keeping
+            if (CONTENT_TYPE_LINES.size() < MAX_CACHED_LINES && type.indexOf("boundary=") < 0) {
+                CONTENT_TYPE_LINES.put(type, line);
+            }
+        }
+        return bytes(line);
+    }
+
+    ResponseWriter date() {
+        long second = System.currentTimeMillis() / 1000;
+        DateLine date = dateLine;
+        if (date.second != second) {
+            date = new DateLine(second, encode("Date: " + ConditionalRequests.formatDate(second * 1000) + "\r\n"));
+            dateLine = date;
+        }
+        return bytes(date.line);
+    }
+
+    ResponseWriter connection(boolean keepAlive) {
+        return bytes(keepAlive ? KEEP_ALIVE : CLOSE);
+    }
+
+    /** @param max requests left on the connection, left out when not positive */
+    ResponseWriter keepAlive(int timeoutSeconds, int max) {
+        bytes(KEEP_ALIVE_TIMEOUT).number(timeoutSeconds);
+        if (max > 0) {
+            bytes(KEEP_ALIVE_MAX).number(max);
+        }
+        return crlf();
+    }
+
+    ResponseWriter contentLength(long size) {
+        return bytes(CONTENT_LENGTH).number(size).crlf();
+    }
+
+    ResponseWriter header(String name, CharSequence value) {
+        return ascii(name).ascii(": ").ascii(value).crlf();
+    }
+
+    ResponseWriter crlf() {
+        return bytes(CRLF);
+    }
+
+    ResponseWriter bytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        return this;
+    }
+
+    /** Appends header text; characters outside ASCII become '?'. */
+    ResponseWriter ascii(CharSequence text) {
+        int n = text.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = text.charAt(i);
+            buffer[length++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        return this;
+    }
+
+    ResponseWriter number(long value) {
+        if (value < 0) {
+            ensure(1);
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    private void ensure(int more) {
+        if (length + more > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+        }
+    }
+
+    private static byte[] encode(String text) {
+        return text.getBytes(ASCII);
+    }
+
+    private static final class DateLine {
+
+        final long second;
+        final byte[] line;
+
+        DateLine(long second, byte[] line) {
+            this.second = second;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package androidhttpweb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of one {@link Cached} WebApi route by query parameters, bounded
+ * to the most recently used {@code maxEntries}. A miss makes the calling
+ * request the leader for its key: identical requests arriving while it runs
+ * the method get a future of its result instead of running the method
+ * themselves, so no thread waits for it.
+ */
+final class ResultCache {
+
+    /** One reply: the body plus what the method set on its {@link HttpResponse}. */
+    static final class Result {
+
+        final String body;
+        final String status;
+        final String contentType;
+        final String etag;
+        final String headers;
+        final long expiresAt;
+
+        Result(String body, HttpResponse response, long expiresAt) {
+            this.body = body;
+            this.status = response.status;
+            this.contentType = response.contentType;
+            this.etag = response.etag;
+            this.headers = response.getExtraHeaders().toString();
+            this.expiresAt = expiresAt;
+        }
+
+        String applyTo(HttpResponse response) {
+            response.status = status;
+            response.contentType = contentType;
+            response.etag = etag;
+            response.setExtraHeaders(headers);
+            return body;
+        }
+    }
+
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Result> results;
+    private final ConcurrentHashMap<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    ResultCache(long ttlMillis, final int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    //requests that waited for another request's call instead of calling the method
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the cached body for {@code qparms}, calling {@code route} only
+     * when no fresh result exists, or while another request is calling it, a
+     * future of the body that completes with {@code response} set
+     */
+    Object get(RouteTable.Route route, HashMap qparms, HttpResponse response) throws Throwable {
+        String key = key(qparms);
+        Result result = fresh(key);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result.applyTo(response);
+        }
+        CompletableFuture<Result> flight = new CompletableFuture<>();
+        CompletableFuture<Result> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return leader.thenApply(done -> done.applyTo(response));
+        }
+        try {
+            result = fresh(key); // a leader may have finished between the lookup and putIfAbsent
+            if (result == null) {
+                misses.incrementAndGet();
+                String body = TinyWebServer.resultText(route.invoke(qparms, response), response);
+                result = new Result(body, response, System.nanoTime() + ttlNanos);
+                if (TinyWebServer.OKAY.equals(response.status)) {
+                    synchronized (this) {
+                        results.put(key, result);
+                    }
+                }
+            }
+            flight.complete(result);
+            return result.applyTo(response);
+        } catch (Throwable er) {
+            flight.completeExceptionally(er);
+            throw er;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    synchronized void clear() {
+        results.clear();
+    }
+
+    private synchronized Result fresh(String key) {
+        Result result = results.get(key);
+        return result != null && result.expiresAt - System.nanoTime() > 0 ? result : null;
+    }
+
+    //parameters sorted by name and length-prefixed, so no value can make two sets collide
+    static String key(Map<?, ?> qparms) {
+        if (qparms == null || qparms.isEmpty()) {
+            return "";
+        }
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, String> param : sorted(qparms).entrySet()) {
+            key.append(param.getKey().length()).append(':').append(param.getKey());
+            if (param.getValue() == null) {
+                key.append('-'); // no value, unlike the text "null"
+            } else {
+                key.append(param.getValue().length()).append(':').append(param.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    private static TreeMap<String, String> sorted(Map<?, ?> qparms) {
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<?, ?> param : qparms.entrySet()) {
+            Object value = param.getValue();
+            sorted.put(String.valueOf(param.getKey()), value != null ? value.toString() : null);
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,158 @@
+package androidhttpweb;
+
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Immutable name to method table for WebApi dispatch. API classes are scanned
+ * once and every public {@code method(HashMap)},
+ * {@code method(HashMap, HttpResponse)} or streaming
+ * {@code method(HashMap, HttpResponse, OutputStream)} becomes a route bound to a
+ * single shared instance, so a request costs one hash lookup and a direct
+ * {@link MethodHandle} call instead of reflection.
+ * <p>
+ * Routes registered without a prefix answer on the last path segment, like
+ * the original {@code getResultByName}; routes with a prefix such as
+ * {@code /api} answer on {@code /api/name} only. Methods annotated with
+ * {@link Cached} get a {@link ResultCache} of their own; methods returning a
+ * {@link CompletionStage} are answered when it completes.
+ */
+final class RouteTable {
+
+    private static final String TAG = "RouteTable";
+    private static final MethodType ROUTE_TYPE = MethodType.methodType(Object.class, HashMap.class, HttpResponse.class,
+            OutputStream.class);
+
+    static final RouteTable EMPTY = new RouteTable(Collections.<String, Route>emptyMap());
+
+    /** One WebApi method bound to its instance. */
+    static final class Route {
+
+        final String path;
+        final Method method;
+        private final MethodHandle handle;
+        //results of a method annotated with @Cached, null otherwise
+        final ResultCache cache;
+        //the method returns a CompletionStage, answered once it completes
+        final boolean async;
+        //method(HashMap, HttpResponse, OutputStream) writing its body itself
+        final boolean streaming;
+        //from @AsyncTimeout, -1 for TinyWebServer.ASYNC_TIMEOUT
+        final long timeoutMillis;
+        final String timeoutStatus;
+
+        Route(String path, Method method, MethodHandle handle) {
+            this.path = path;
+            this.method = method;
+            this.handle = handle;
+            this.async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+            this.streaming = method.getParameterTypes().length == 3;
+            Cached cached = method.getAnnotation(Cached.class);
+            if (cached != null && (async || streaming)) {
+                ServerLog.w(TAG, "@Cached ignored on " + method.getName() + ", its result is not a String");
+                cached = null;
+            }
+            this.cache = cached != null ? new ResultCache(cached.ttlMillis(), cached.maxEntries()) : null;
+            AsyncTimeout timeout = method.getAnnotation(AsyncTimeout.class);
+            this.timeoutMillis = timeout != null ? timeout.millis() : -1;
+            this.timeoutStatus = timeout != null ? timeout.status() : TinyWebServer.SERVICE_UNAVAILABLE;
+        }
+
+        Object invoke(HashMap qparms, HttpResponse response) throws Throwable {
+            return (Object) handle.invokeExact(qparms, response, (OutputStream) null);
+        }
+
+        //for streaming routes, which write their body to out
+        void invoke(HashMap qparms, HttpResponse response, OutputStream out) throws Throwable {
+            Object ignored = (Object) handle.invokeExact(qparms, response, out);
+        }
+    }
+
+    private final Map<String, Route> routes;
+
+    private RouteTable(Map<String, Route> routes) {
+        this.routes = routes;
+    }
+
+    /** @return the route for a request path, or null */
+    Route find(String path) {
+        Route route = routes.get(path);
+        if (route == null) {
+            route = routes.get(path.substring(path.lastIndexOf('/') + 1));
+        }
+        return route;
+    }
+
+    int size() {
+        return routes.size();
+    }
+
+    /** @return a copy of this table with the public methods of {@code api} added under {@code prefix} */
+    RouteTable with(String prefix, Object api) {
+        Map<String, Route> copy = new HashMap<>(routes);
+        String base = normalizePrefix(prefix);
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Method method : api.getClass().getMethods()) {
+            if (!isRoute(method)) {
+                continue;
+            }
+            try {
+                method.setAccessible(true); // public methods of a non-public class
+                MethodHandle handle = lookup.unreflect(method).bindTo(api);
+                int params = method.getParameterTypes().length;
+                if (params < 3) {
+                    // method(HashMap) simply ignores the response, and only streaming methods take the stream
+                    handle = MethodHandles.dropArguments(handle, params, ROUTE_TYPE.parameterList().subList(params, 3));
+                }
+                handle = handle.asType(ROUTE_TYPE);
+                String path = base.isEmpty() ? method.getName() : base + "/" + method.getName();
+                copy.put(path, new Route(path, method, handle));
+            } catch (IllegalAccessException | SecurityException er) {
+                ServerLog.w(TAG, "with: skipping " + method.getName() + " " + er.getMessage());
+            }
+        }
+        ServerLog.i(TAG, "%d routes after adding %s at '%s'", copy.size(), api.getClass().getName(), base);
+        return new RouteTable(Collections.unmodifiableMap(copy));
+    }
+
+    /** @return a table for {@code className} instantiated once with its empty constructor */
+    static RouteTable forClassName(String className) {
+        try {
+            return EMPTY.with("", Class.forName(className).newInstance());
+        } catch (Exception er) {
+            ServerLog.e(TAG, "forClassName: unable to load " + className + " " + er);
+            return EMPTY;
+        }
+    }
+
+    private static boolean isRoute(Method method) {
+        Class<?>[] params = method.getParameterTypes();
+        return method.getDeclaringClass() != Object.class
+                && !Modifier.isStatic(method.getModifiers())
+                && (params.length == 1 || (params.length >= 2 && params[1] == HttpResponse.class))
+                && (params.length < 3 || (params.length == 3 && params[2] == OutputStream.class))
+                && params[0] == HashMap.class; // not Object, or every equals(Object) override would be a route
+    }
+
+    private static String normalizePrefix(String prefix) {
+        if (prefix == null) {
+            return "";
+        }
+        String base = prefix.trim();
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        if (!base.isEmpty() && !base.startsWith("/")) {
+            base = "/" + base;
+        }
+        return base;
+    }
+}
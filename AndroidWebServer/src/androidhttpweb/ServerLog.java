@@ -0,0 +1,118 @@
+package androidhttpweb;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Logging front end of the server. Goes to {@code android.util.Log} when it
+ * is on the class path and to stderr otherwise, so the same code runs on a
+ * device and on a plain JVM. Messages below {@link #setLevel(int) the level}
+ * cost one volatile read: the format variants only build the String once
+ * the level check has passed.
+ */
+public final class ServerLog {
+
+    //same values as the android.util.Log priorities
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /** Destination of the log lines, see {@link #setSink(Sink)}. */
+    public interface Sink {
+
+        void println(int level, String tag, String message);
+    }
+
+    private static volatile int level = INFO;
+    private static volatile Sink sink = defaultSink();
+
+    private ServerLog() { }
+
+    /** Drops messages below {@code level}; {@link #DEBUG} shows every request. */
+    public static void setLevel(int level) {
+        ServerLog.level = level;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= ServerLog.level;
+    }
+
+    /** Sends the log to {@code sink}; {@code null} restores Android's log or stderr. */
+    public static void setSink(Sink sink) {
+        ServerLog.sink = sink != null ? sink : defaultSink();
+    }
+
+    public static void d(String tag, String message) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, message);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, String.format(format, arg));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(DEBUG)) {
+            println(DEBUG, tag, String.format(format, arg1, arg2));
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (isLoggable(INFO)) {
+            println(INFO, tag, message);
+        }
+    }
+
+    public static void i(String tag, String format, Object... args) {
+        if (isLoggable(INFO)) {
+            println(INFO, tag, String.format(format, args));
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (isLoggable(WARN)) {
+            println(WARN, tag, message);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (isLoggable(ERROR)) {
+            println(ERROR, tag, message);
+        }
+    }
+
+    //no level check, for callers with a switch of their own such as the access log
+    static void println(int level, String tag, String message) {
+        sink.println(level, tag, message);
+    }
+
+    private static Sink defaultSink() {
+        try {
+            Class<?> log = Class.forName("android.util.Log");
+            final MethodHandle println = MethodHandles.publicLookup().findStatic(log, "println",
+                    MethodType.methodType(int.class, int.class, String.class, String.class));
+            return new Sink() {
+                @Override
+                public void println(int level, String tag, String message) {
+                    try {
+                        int ignored = (int) println.invokeExact(level, tag, message);
+                    } catch (Throwable er) {
+                        System.err.println(tag + ": " + message);
+                    }
+                }
+            };
+        } catch (ReflectiveOperationException | LinkageError er) {
+            return new Sink() {
+                @Override
+                public void println(int level, String tag, String message) {
+                    System.err.println("?VDIWE".charAt(Math.max(0, Math.min(level - 1, 5))) + "/" + tag + ": " + message);
+                }
+            };
+        }
+    }
+}
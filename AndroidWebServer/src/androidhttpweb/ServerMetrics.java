@@ -0,0 +1,253 @@
+package androidhttpweb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request, latency, traffic and connection counters of the server, served in
+ * Prometheus text format on {@link TinyWebServer#METRICS_PATH}. Recording is
+ * lock-free: counters are {@link LongAdder}s and latencies go into
+ * log-linear histograms (four buckets per power of two, so quantiles are
+ * within about 20%) backed by an {@link AtomicLongArray}.
+ * <p>
+ * Requests are labelled by route: the WebApi path for API calls, "static"
+ * for files, "unmatched" for unknown API names, so the label set stays small.
+ */
+public final class ServerMetrics {
+
+    static final String ROUTE_STATIC = "static";
+    static final String ROUTE_UNMATCHED = "unmatched";
+    static final String ROUTE_METRICS = "metrics";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final ConcurrentHashMap<String, RouteStats> routes = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder requestsInFlight = new LongAdder();
+    private final LongAdder acceptTimeouts = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder headerTimeouts = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+
+    void requestStarted() {
+        requestsInFlight.increment();
+    }
+
+    void requestFinished(String route, String status, long nanos, long sent) {
+        requestsInFlight.decrement();
+        bytesOut.add(sent);
+        RouteStats stats = routes.get(route);
+        if (stats == null) {
+            RouteStats created = new RouteStats();
+            stats = routes.putIfAbsent(route, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(status, nanos);
+    }
+
+    void bytesRead(long count) {
+        bytesIn.add(count);
+    }
+
+    void bytesWritten(long count) {
+        bytesOut.add(count);
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    void acceptTimedOut() {
+        acceptTimeouts.increment();
+    }
+
+    void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    void connectionTimedOut(boolean readingHeaders) {
+        (readingHeaders ? headerTimeouts : idleTimeouts).increment();
+    }
+
+    void parseFailed() {
+        parseErrors.increment();
+    }
+
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    /** @return open connections not currently processing a request */
+    public long getIdleConnections() {
+        return Math.max(0, getActiveConnections() - requestsInFlight.sum());
+    }
+
+    public long getRequestCount() {
+        long count = 0;
+        for (RouteStats stats : routes.values()) {
+            count += stats.latency.count.sum();
+        }
+        return count;
+    }
+
+    /** @return the metrics in Prometheus text exposition format (version 0.0.4) */
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, RouteStats> sorted = new TreeMap<>(routes);
+
+        header(out, "tinyweb_requests_total", "counter", "Requests answered, by route and status.");
+        for (Map.Entry<String, RouteStats> route : sorted.entrySet()) {
+            Map<String, LongAdder> statuses = new TreeMap<>(route.getValue().statuses);
+            for (Map.Entry<String, LongAdder> status : statuses.entrySet()) {
+                out.append("tinyweb_requests_total{route=\"").append(escape(route.getKey()))
+                        .append("\",status=\"").append(status.getKey()).append("\"} ")
+                        .append(status.getValue().sum()).append('\n');
+            }
+        }
+
+        header(out, "tinyweb_request_duration_seconds", "summary", "Time to answer a request, by route.");
+        for (Map.Entry<String, RouteStats> route : sorted.entrySet()) {
+            Histogram latency = route.getValue().latency;
+            String label = "route=\"" + escape(route.getKey()) + "\"";
+            for (double q : QUANTILES) {
+                out.append("tinyweb_request_duration_seconds{").append(label).append(",quantile=\"").append(q)
+                        .append("\"} ").append(seconds(latency.quantileMicros(q))).append('\n');
+            }
+            out.append("tinyweb_request_duration_seconds_sum{").append(label).append("} ")
+                    .append(seconds(latency.sumMicros.sum())).append('\n');
+            out.append("tinyweb_request_duration_seconds_count{").append(label).append("} ")
+                    .append(latency.count.sum()).append('\n');
+        }
+
+        counter(out, "tinyweb_received_bytes_total", "Bytes read from clients.", bytesIn.sum());
+        counter(out, "tinyweb_sent_bytes_total", "Bytes of responses written to clients.", bytesOut.sum());
+        gauge(out, "tinyweb_connections_active", "Open client connections.", getActiveConnections());
+        gauge(out, "tinyweb_connections_idle", "Open connections waiting for a request.", getIdleConnections());
+        gauge(out, "tinyweb_requests_in_flight", "Requests being processed.", requestsInFlight.sum());
+        counter(out, "tinyweb_connections_total", "Accepted client connections.", connectionsOpened.sum());
+        counter(out, "tinyweb_accept_timeouts_total", "Accept calls that timed out without a client.", acceptTimeouts.sum());
+        counter(out, "tinyweb_rejected_connections_total", "Connections or requests refused with 503.", rejectedConnections.sum());
+        header(out, "tinyweb_connection_timeouts_total", "counter", "Connections closed by a timeout.");
+        out.append("tinyweb_connection_timeouts_total{kind=\"idle\"} ").append(idleTimeouts.sum()).append('\n');
+        out.append("tinyweb_connection_timeouts_total{kind=\"header\"} ").append(headerTimeouts.sum()).append('\n');
+        counter(out, "tinyweb_parse_errors_total", "Malformed or oversized requests.", parseErrors.sum());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class RouteStats {
+
+        final Histogram latency = new Histogram();
+        final ConcurrentHashMap<String, LongAdder> statuses = new ConcurrentHashMap<>(4);
+
+        void record(String status, long nanos) {
+            LongAdder counter = statuses.get(status);
+            if (counter == null) {
+                LongAdder created = new LongAdder();
+                counter = statuses.putIfAbsent(status, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            counter.increment();
+            latency.record(nanos / 1000);
+        }
+    }
+
+    /** Log-linear histogram of microsecond values up to about 2^40 us. */
+    static final class Histogram {
+
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sumMicros = new LongAdder();
+
+        void record(long micros) {
+            if (micros < 0) {
+                micros = 0;
+            }
+            buckets.incrementAndGet(index(micros));
+            count.increment();
+            sumMicros.add(micros);
+        }
+
+        //values below 4 get a bucket each, then four per power of two
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int log2 = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (log2 - 2)) & (SUB_BUCKETS - 1);
+            return Math.min(BUCKETS - 1, (log2 - 1) * SUB_BUCKETS + sub);
+        }
+
+        //exclusive upper bound of a bucket
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index + 1;
+            }
+            int log2 = index / SUB_BUCKETS + 1;
+            int sub = index % SUB_BUCKETS;
+            return (long) (SUB_BUCKETS + sub + 1) << (log2 - 2);
+        }
+
+        /** @return the upper bound of the bucket holding quantile {@code q}, 0 when empty */
+        long quantileMicros(double q) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+    }
+}
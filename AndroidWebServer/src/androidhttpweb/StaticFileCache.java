@@ -0,0 +1,213 @@
+package androidhttpweb;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of small static files and their pre-encoded entity
+ * headers, bounded by a total byte budget and evicted least recently used
+ * first. Entries are checked against the file's size and modification time
+ * at most once per {@link #setRevalidateMillis revalidation interval}.
+ */
+public class StaticFileCache {
+
+    /** Cached body plus its Content-Type, Content-Length and validator header lines. */
+    static final class Entry {
+
+        final byte[] body;
+        final byte[] headers;
+        final String etag;
+        final long lastModified;
+        //ETag and Last-Modified lines, formatted once for the 304s and ranges of this entry
+        final String validators;
+        //ETag of the identity entry a compressed copy was made from
+        final String source;
+        volatile long checkedAt;
+
+        Entry(byte[] body, byte[] headers, String etag, long lastModified, String source, long checkedAt) {
+            this.body = body;
+            this.headers = headers;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.validators = ConditionalRequests.validatorHeaders(etag, lastModified);
+            this.source = source;
+            this.checkedAt = checkedAt;
+        }
+
+        long weight() {
+            return body.length + headers.length;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private volatile long revalidateMillis = 1000;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes      total budget for bodies and headers
+     * @param maxEntryBytes larger files are never cached and are streamed from disk
+     */
+    public StaticFileCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /** How long an entry is trusted before its file is stat'ed again; 0 checks every hit. */
+    public void setRevalidateMillis(long revalidateMillis) {
+        this.revalidateMillis = revalidateMillis;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @param encoding Content-Encoding of the file itself, e.g. gzip for a
+     *                 precompressed .gz sidecar, or null
+     * @return the cached file, loading it on a miss, or null when the file is
+     * missing or too large to cache
+     */
+    Entry get(File file, String contentType, String encoding) {
+        String key = file.getPath();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && now - entry.checkedAt < revalidateMillis) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (entry != null && entry.lastModified == lastModified && entry.body.length == length
+                && lastModified != 0) {
+            entry.checkedAt = now;
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        if (entry != null) {
+            remove(key, entry);
+        }
+        if (lastModified == 0 || length > maxEntryBytes || !file.isFile()) {
+            return null;
+        }
+
+        byte[] body;
+        try {
+            body = read(file, (int) length);
+        } catch (IOException er) {
+            return null;
+        }
+        String etag = ConditionalRequests.etag(body.length, lastModified);
+        entry = new Entry(body, headers(contentType, body.length, etag, lastModified, encoding),
+                etag, lastModified, null, now);
+        put(key, entry);
+        return entry;
+    }
+
+    /**
+     * @return {@code plain} compressed with {@code encoding}, compressing it
+     * once and keeping the result until the file changes
+     */
+    Entry getCompressed(File file, Entry plain, String contentType, String encoding, int level) {
+        String key = file.getPath() + '\u0000' + encoding;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.source.equals(plain.etag)) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        byte[] body = Compression.compress(plain.body, 0, plain.body.length, encoding, level);
+        String etag = Compression.encodedEtag(plain.etag, encoding);
+        entry = new Entry(body, headers(contentType, body.length, etag, plain.lastModified, encoding),
+                etag, plain.lastModified, plain.etag, plain.checkedAt);
+        put(key, entry);
+        return entry;
+    }
+
+    private static byte[] headers(String contentType, int length, String etag, long lastModified, String encoding) {
+        String headers = "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + ConditionalRequests.validatorHeaders(etag, lastModified);
+        if (encoding != null) {
+            headers += "Content-Encoding: " + encoding + "\r\n";
+        } else {
+            headers += ByteRanges.ACCEPT_RANGES;
+        }
+        if (Compression.isCompressible(contentType)) {
+            headers += Compression.VARY;
+        }
+        return headers.getBytes(HttpRequest.UTF_8);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.weight();
+        }
+        size += entry.weight();
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (size > maxBytes && eldest.hasNext()) {
+            size -= eldest.next().getValue().weight();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(String key, Entry entry) {
+        if (entries.get(key) == entry) {
+            entries.remove(key);
+            size -= entry.weight();
+        }
+    }
+
+    private static byte[] read(File file, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return body;
+        } finally {
+            in.close();
+        }
+    }
+}
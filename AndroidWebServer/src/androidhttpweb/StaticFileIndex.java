@@ -0,0 +1,356 @@
+package androidhttpweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the public directory: request path to file, size,
+ * modification time, content type and gzip sidecar, plus the index file of
+ * every directory under its path with a trailing slash. Built when the
+ * server starts and kept current by a {@link WatchService} thread that
+ * re-lists only the directories it reports, so serving a file or a 404 does
+ * not touch the file system. Where watching is not available lookups fall
+ * back to checking the file on every request.
+ */
+final class StaticFileIndex {
+
+    private static final String TAG = "StaticFileIndex";
+    //deeper trees, or symbolic link loops, are not indexed further
+    private static final int MAX_DEPTH = 32;
+
+    /** One servable file. */
+    static final class Entry {
+
+        final File file;
+        final long size;
+        final long lastModified;
+        final String contentType;
+        //precompressed name.gz next to the file, null when missing or older
+        final File gzip;
+
+        Entry(File file, long size, long lastModified, String contentType, File gzip) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.gzip = gzip;
+        }
+    }
+
+    private final File root;
+    //what find() answers from, replaced in one write by a rebuild
+    private volatile ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    //the map the watch thread updates: entries, or the next one during a rebuild
+    private ConcurrentHashMap<String, Entry> building = entries;
+    //watched directories by request path prefix, e.g. "/" and "/docs/"
+    private final Map<WatchKey, String> watched = new HashMap<>();
+    private final Set<String> directories = new HashSet<>();
+    private final WatchService watcher;
+    private volatile boolean live;
+
+    private StaticFileIndex(File root, WatchService watcher) {
+        this.root = root;
+        this.watcher = watcher;
+    }
+
+    /**
+     * Indexes {@code root} and starts watching it, see {@link #close()};
+     * without {@code watch} every lookup checks the disk.
+     */
+    static StaticFileIndex open(File root, boolean watch) {
+        WatchService watcher = null;
+        try {
+            watcher = watch ? FileSystems.getDefault().newWatchService() : null;
+        } catch (IOException | UnsupportedOperationException er) {
+            ServerLog.w(TAG, "open: no WatchService, files are checked on every request " + er);
+        }
+        final StaticFileIndex index = new StaticFileIndex(root, watcher);
+        if (watcher != null) {
+            index.rebuild();
+            index.live = true;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    index.watch();
+                }
+            }, TAG);
+            t.setDaemon(true);
+            t.start();
+            ServerLog.i(TAG, "open: %d files in %s", index.entries.size(), root);
+        }
+        return index;
+    }
+
+    void close() {
+        live = false;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param path a {@link #normalize normalized} request path; with a
+     *             trailing slash it names the directory's index file
+     * @return the file, or null when there is none
+     */
+    Entry find(String path) {
+        if (live) {
+            return entries.get(path);
+        }
+        File file = new File(root, path);
+        if (path.endsWith("/")) {
+            return file.isDirectory() ? indexOf(file, path) : null;
+        }
+        return file.isFile() ? entry(file, path, new File(file.getPath() + ".gz")) : null;
+    }
+
+    /**
+     * Percent-decodes a request path and checks that it stays inside the
+     * public directory.
+     *
+     * @return the decoded path, or null for a path that is malformed or
+     * contains a ".." segment, a backslash or a NUL
+     */
+    static String normalize(String path) {
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        String decoded = path.indexOf('%') < 0 ? path : decode(path);
+        if (decoded == null || decoded.indexOf('\\') >= 0 || decoded.indexOf('\0') >= 0) {
+            return null;
+        }
+        int start = 1;
+        while (start <= decoded.length()) {
+            int end = decoded.indexOf('/', start);
+            if (end < 0) {
+                end = decoded.length();
+            }
+            if (end - start == 2 && decoded.charAt(start) == '.' && decoded.charAt(start + 1) == '.') {
+                return null;
+            }
+            start = end + 1;
+        }
+        return decoded;
+    }
+
+    private static String decode(String path) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c != '%') {
+                byte[] plain = String.valueOf(c).getBytes(HttpRequest.UTF_8);
+                bytes.write(plain, 0, plain.length);
+                continue;
+            }
+            if (i + 2 >= path.length()) {
+                return null;
+            }
+            int high = Character.digit(path.charAt(i + 1), 16);
+            int low = Character.digit(path.charAt(i + 2), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes.write(high << 4 | low);
+            i += 2;
+        }
+        return new String(bytes.toByteArray(), HttpRequest.UTF_8);
+    }
+
+    private void rebuild() {
+        for (WatchKey key : watched.keySet()) {
+            key.cancel();
+        }
+        watched.clear();
+        directories.clear();
+        building = new ConcurrentHashMap<>();
+        refresh(root, "/", 0);
+        entries = building; // lookups keep the old index until the new one is complete
+    }
+
+    /**
+     * Re-lists one directory: adds and updates its files, drops the ones
+     * that are gone, picks its index file and indexes new subdirectories.
+     */
+    private void refresh(File dir, String prefix, int depth) {
+        //watched before it is listed, so files created in between are reported
+        if (directories.add(prefix)) {
+            try {
+                watched.put(dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), prefix);
+            } catch (IOException er) {
+                if (dir.isDirectory()) { // not just removed again
+                    ServerLog.w(TAG, "refresh: unable to watch " + dir + " " + er);
+                }
+            }
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            forget(prefix); // the directory itself was removed
+            return;
+        }
+        Set<String> names = new HashSet<>();
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isFile()) {
+                File gzip = names.contains(file.getName() + ".gz") ? new File(file.getPath() + ".gz") : null;
+                building.put(path, entry(file, path, gzip));
+            } else if (file.isDirectory() && !directories.contains(path + "/") && depth < MAX_DEPTH) {
+                refresh(file, path + "/", depth + 1);
+            }
+        }
+        for (Iterator<String> it = building.keySet().iterator(); it.hasNext(); ) {
+            String path = it.next();
+            int slash = path.lastIndexOf('/');
+            if (slash == prefix.length() - 1 && path.startsWith(prefix) && slash < path.length() - 1
+                    && !names.contains(path.substring(slash + 1))) {
+                it.remove();
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String sub : directories) {
+            if (sub.length() > prefix.length() && sub.startsWith(prefix)
+                    && sub.indexOf('/', prefix.length()) == sub.length() - 1
+                    && !names.contains(sub.substring(prefix.length(), sub.length() - 1))) {
+                removed.add(sub);
+            }
+        }
+        for (String sub : removed) {
+            forget(sub);
+        }
+        Entry index = indexOf(dir, prefix);
+        if (index != null) {
+            building.put(prefix, index);
+        } else {
+            building.remove(prefix);
+        }
+    }
+
+    //drops everything under a removed directory
+    private void forget(String prefix) {
+        directories.remove(prefix);
+        for (Iterator<String> it = building.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        for (Iterator<String> it = directories.iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<WatchKey, String>> it = watched.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<WatchKey, String> key = it.next();
+            if (key.getValue().startsWith(prefix)) {
+                key.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    //INDEX_FILE_NAME when the directory has it, else the first index.* by name
+    private static Entry indexOf(File dir, String prefix) {
+        File preferred = new File(dir, TinyWebServer.INDEX_FILE_NAME);
+        if (preferred.isFile()) {
+            return entry(preferred, prefix + preferred.getName(), null);
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            return null;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = new File(dir, name);
+            if (name.split("\\.")[0].equalsIgnoreCase("index") && !name.endsWith(".gz") && file.isFile()) {
+                return entry(file, prefix + name, null);
+            }
+        }
+        return null;
+    }
+
+    private static Entry entry(File file, String path, File gzip) {
+        long lastModified = file.lastModified();
+        if (gzip != null && gzip.lastModified() < lastModified) {
+            gzip = null;
+        }
+        return new Entry(file, file.length(), lastModified, TinyWebServer.getContentType(path), gzip);
+    }
+
+    //applies the reported changes, one re-list per directory per batch of events
+    private void watch() {
+        try {
+            while (true) {
+                List<WatchKey> ready = new ArrayList<>();
+                ready.add(watcher.take());
+                for (WatchKey more; (more = watcher.poll()) != null; ) {
+                    ready.add(more);
+                }
+                boolean overflow = false;
+                Set<String> changed = new HashSet<>();
+                for (WatchKey key : ready) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        overflow |= event.kind() == StandardWatchEventKinds.OVERFLOW;
+                    }
+                    String prefix = watched.get(key);
+                    if (!key.reset()) {
+                        watched.remove(key);
+                    }
+                    if (prefix != null) {
+                        changed.add(prefix);
+                    }
+                }
+                if (overflow) {
+                    rebuild();
+                    continue;
+                }
+                for (String prefix : changed) {
+                    if (directories.contains(prefix)) {
+                        Path dir = root.toPath().resolve(prefix.substring(1));
+                        refresh(dir.toFile(), prefix, depth(prefix));
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException stopped) {
+            live = false;
+        } catch (RuntimeException er) {
+            live = false; // answer from the file system from now on
+            ServerLog.e(TAG, "watch: " + er);
+        }
+    }
+
+    private static int depth(String prefix) {
+        int depth = -1;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (prefix.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
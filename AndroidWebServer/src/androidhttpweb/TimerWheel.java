@@ -0,0 +1,95 @@
+package androidhttpweb;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Hashed timer wheel used by {@link NioEventLoop} to reap idle and slow
+ * connections. Scheduling and moving a deadline are O(1) and the loop pays
+ * only for the slots it passes, so thousands of keep-alive sockets need no
+ * extra threads and no sorted structure. Not thread-safe; owned by one loop.
+ */
+final class TimerWheel {
+
+    /** Something with a deadline; moving the deadline later is free. */
+    abstract static class Timeout {
+
+        long deadline = Long.MAX_VALUE;
+        boolean cancelled;
+        private long tick = -1;
+    }
+
+    private final long tickMillis;
+    private final ArrayDeque<Timeout>[] slots;
+    private long currentTick;
+
+    TimerWheel(long tickMillis, int slotCount, long now) {
+        this.tickMillis = tickMillis;
+        @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation
+        ArrayDeque<Timeout>[] slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.slots = slots;
+        this.currentTick = now / tickMillis;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Sets the deadline of {@code timeout}. A later deadline only updates the
+     * field and is picked up when the old slot comes around; an earlier one
+     * re-files the timeout.
+     */
+    void schedule(Timeout timeout, long deadline) {
+        timeout.deadline = deadline;
+        if (timeout.cancelled) {
+            return;
+        }
+        // rounded up, so the slot is only visited once the deadline has passed
+        long tick = Math.max(deadline / tickMillis + (deadline % tickMillis == 0 ? 0 : 1), currentTick);
+        if (timeout.tick >= 0 && timeout.tick <= tick) {
+            return;
+        }
+        timeout.tick = tick;
+        slots[slotOf(tick)].add(timeout);
+    }
+
+    void cancel(Timeout timeout) {
+        timeout.cancelled = true;
+    }
+
+    /** Moves the wheel to {@code now}, adding every timeout that is due to {@code expired}. */
+    void advance(long now, List<Timeout> expired) {
+        long target = now / tickMillis;
+        if (target - currentTick >= slots.length) {
+            currentTick = target - slots.length + 1; // one full turn visits every slot
+        }
+        for (; currentTick <= target; currentTick++) {
+            int slot = slotOf(currentTick);
+            ArrayDeque<Timeout> timeouts = slots[slot];
+            for (int i = timeouts.size(); i > 0; i--) {
+                Timeout timeout = timeouts.poll();
+                if (timeout.cancelled || timeout.tick < 0 || slotOf(timeout.tick) != slot) {
+                    continue; // cancelled, or a stale copy left behind by an earlier deadline
+                }
+                if (timeout.tick > currentTick) {
+                    timeouts.add(timeout); // due on a later turn
+                    continue;
+                }
+                timeout.tick = -1;
+                if (timeout.deadline <= now) {
+                    expired.add(timeout);
+                } else {
+                    schedule(timeout, timeout.deadline);
+                }
+            }
+        }
+    }
+
+    private int slotOf(long tick) {
+        return (int) (tick % slots.length);
+    }
+}
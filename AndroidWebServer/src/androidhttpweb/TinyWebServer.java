@@ -23,31 +23,36 @@
  */
 package androidhttpweb;
 
-import android.util.Log;
-
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.lang.reflect.Method;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.UnknownHostException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Hashtable;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 /**
@@ -62,25 +67,24 @@ public class TinyWebServer extends Thread {
     private static final String TAG = "TinyWebServer";
     static final String DEFAULT_WEB_API_CLASSNAME = TinyWebServer.class.getPackage().getName() + ".WebApi";
     static private String WEB_API_CLASSNAME = DEFAULT_WEB_API_CLASSNAME;
+    static private Executor CONNECTION_EXECUTOR = null;
+    static private volatile RouteTable ROUTES = null;
 
     /**
      * @param args the command line arguments
      */
     private static ServerSocket serverSocket = null;
     private final Map<String, String> lowerCaseHeader = new HashMap<>();
+    //only for the public processLocation(out, location, postData), requests carry their own method
+    private volatile String legacyRequestType = "GET";
+    private volatile String legacyHttpVer = "HTTP/1.1";
 
-    public static String CONTENT_TYPE = "text/html";
     private String CONTENT_DATE = "";
     private String CONN_TYPE = "";
-    private String Content_Encoding = "";
     private String content_length = "";
-    static private String STATUS = "200";
-    private boolean keepAlive = true;
     private String SERVER_NAME = "Firefly http server v0.1";
-    private static final String MULTIPART_FORM_DATA_HEADER = "multipart/form-data";
+    static final String MULTIPART_FORM_DATA_HEADER = "multipart/form-data";
     private static final String ASCII_ENCODING = "US-ASCII";
-    private String REQUEST_TYPE = "GET";
-    private String HTTP_VER = "HTTP/1.1";
 
     //all status
     public static String PAGE_NOT_FOUND = "404";
@@ -111,6 +115,7 @@ public class TinyWebServer extends Thread {
     public static String RANGE_NOT_SATISFIABLE = "416";
     public static String EXPECTATION_FAILED = "417";
     public static String TOO_MANY_REQUESTS = "429";
+    public static String REQUEST_HEADER_FIELDS_TOO_LARGE = "431";
 
     public static String INTERNAL_ERROR = "500";
     public static String NOT_IMPLEMENTED = "501";
@@ -154,7 +159,7 @@ public class TinyWebServer extends Thread {
 
     private static final String BOUNDARY_REGEX = "[ |\t]*(boundary)[ |\t]*=[ |\t]*['|\"]?([^\"^'^;^,]*)['|\"]?";
 
-    private static final Pattern BOUNDARY_PATTERN = Pattern.compile(BOUNDARY_REGEX, Pattern.CASE_INSENSITIVE);
+    static final Pattern BOUNDARY_PATTERN = Pattern.compile(BOUNDARY_REGEX, Pattern.CASE_INSENSITIVE);
     
     
     public static String WEB_DIR_PATH="/";
@@ -163,14 +168,71 @@ public class TinyWebServer extends Thread {
     public static int SERVER_PORT=9000;
     public static boolean isStart=false;
     public static String INDEX_FILE_NAME="index.html";
+    //serve connections from Selector loops instead of one EchoThread per socket
+    public static boolean USE_NIO=false;
+    public static int NIO_SELECTOR_COUNT=1;
+    //request line plus headers, larger requests get 431
+    public static int MAX_HEADER_SIZE=16 * 1024;
+    static final int READ_BUFFER_SIZE=8192;
+    //gzip/deflate level for text responses, 0 turns compression off
+    public static int COMPRESSION_LEVEL=6;
+    //smaller bodies are not worth compressing
+    public static int COMPRESSION_MIN_SIZE=1024;
+    //idle time allowed between requests on a kept-alive connection, 0 waits forever
+    public static int KEEP_ALIVE_TIMEOUT=15000;
+    //time allowed to receive a request line and its headers, slower clients get 408
+    public static int HEADER_READ_TIMEOUT=10000;
+    //requests served on one connection before it is closed, 0 for no limit
+    public static int MAX_KEEP_ALIVE_REQUESTS=100;
+    //largest request body, by Content-Length or chunked, larger ones get 413
+    public static int MAX_BODY_SIZE=16 * 1024 * 1024;
+    //bodies above this size are spooled to a temporary file in UPLOAD_DIR instead of kept in memory
+    public static int BODY_MEMORY_LIMIT=64 * 1024;
+    //multipart/form-data uploads: largest accepted body, and largest field that is not a file
+    public static long MAX_UPLOAD_SIZE=64L * 1024 * 1024;
+    public static int MAX_UPLOAD_FIELD_SIZE=64 * 1024;
+    //directory for uploaded files, null for java.io.tmpdir
+    public static String UPLOAD_DIR=null;
+    private static volatile UploadSink UPLOAD_SINK;
+    //one line per request (method, path, status, bytes, duration) at INFO, written by a background thread
+    public static boolean ACCESS_LOG=false;
+    //time allowed to the future of an asynchronous WebApi method without @AsyncTimeout, 0 waits forever
+    public static long ASYNC_TIMEOUT=30000;
+    //buffer of a streaming WebApi method, sent as one chunk whenever it fills up
+    public static int STREAM_CHUNK_SIZE=8192;
+    //WebApi results that are not Strings are written as JSON; larger ones go out chunked as they are written
+    public static int JSON_BUFFER_LIMIT=64 * 1024;
+    //time a streamed response waits for a client that stopped reading (NIO only), 0 waits forever
+    public static int WRITE_TIMEOUT=30000;
+    //threads for streaming methods of NIO connections without a connection executor, as many more may wait; beyond that 503
+    public static int STREAM_THREADS_MAX=16;
+    private static ExecutorService STREAM_THREADS=null;
+    private static final AccessLog ACCESS=new AccessLog(4096);
+    //reserved path serving getMetrics() in Prometheus text format, null turns it off
+    public static String METRICS_PATH="/_metrics";
+    private static final ServerMetrics METRICS=new ServerMetrics();
+    //small static files kept in memory, see setFileCache
+    private static volatile StaticFileCache FILE_CACHE=new StaticFileCache(2 * 1024 * 1024, 64 * 1024);
+    //large files shared through memory mappings, off unless set with setMappedFileCache
+    private static volatile MappedFileCache MAPPED_FILE_CACHE=null;
+    //index of WEB_DIR_PATH kept current by a WatchService, false checks the disk on every request
+    public static boolean INDEX_PUBLIC_DIR=true;
+    private static StaticFileIndex FILE_INDEX=null;
     
 
     public TinyWebServer(final InetAddress addr, final int port) throws IOException {
         if (addr != null) {
-            serverSocket = new ServerSocket(port, 100, addr);
-            serverSocket.setSoTimeout(5000);  //set timeout for listener
+            //channel-backed sockets let static files go out with FileChannel.transferTo
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.configureBlocking(!USE_NIO);
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(addr, port), 100);
+            serverSocket = channel.socket();
+            if (!USE_NIO) {
+                serverSocket.setSoTimeout(5000);  //set timeout for listener
+            }
         } else {
-            Log.e(TAG,  String.format("ctor(): unresolved Server Address"));
+            ServerLog.e(TAG,  String.format("ctor(): unresolved Server Address"));
             serverSocket = null;
         }
     }
@@ -179,26 +241,169 @@ public class TinyWebServer extends Thread {
         return serverSocket != null;
     }
 
-    static public void setWebApiClassname(final String webApiClassname)
+    //rescans the routes, dropping any added with registerWebApi
+    static public synchronized void setWebApiClassname(final String webApiClassname)
     {
         WEB_API_CLASSNAME = webApiClassname;
+        ROUTES = RouteTable.forClassName(webApiClassname);
+    }
+
+    /**
+     * Adds the public {@code method(HashMap)} methods of {@code api} as routes
+     * under {@code prefix}, e.g. "/sensors" serves {@code /sensors/name}.
+     * The instance is shared by all requests and must be thread-safe.
+     */
+    static public synchronized void registerWebApi(final String prefix, final Object api)
+    {
+        ROUTES = routes().with(prefix, api);
+    }
+
+    //the default WebApi class is scanned on first use
+    static synchronized RouteTable routes() {
+        if (ROUTES == null) {
+            ROUTES = RouteTable.forClassName(WEB_API_CLASSNAME);
+        }
+        return ROUTES;
+    }
+
+    /**
+     * Runs connection handling (or, with {@link #USE_NIO}, request handling)
+     * on {@code executor}, see {@link ConnectionExecutors}. Work the executor
+     * rejects is answered with {@link #SERVICE_UNAVAILABLE} right away.
+     * {@code null} restores the default thread per connection.
+     */
+    static public void setConnectionExecutor(final Executor executor)
+    {
+        CONNECTION_EXECUTOR = executor;
+    }
+
+    /**
+     * Replaces the in-memory cache for small static files; {@code null}
+     * disables caching so every request reads from disk.
+     */
+    static public void setFileCache(final StaticFileCache cache)
+    {
+        FILE_CACHE = cache;
+    }
+
+    static public StaticFileCache getFileCache() {
+        return FILE_CACHE;
+    }
+
+    /**
+     * Serves files of at least the cache's minimum size from shared memory
+     * mappings instead of a transferTo per request, e.g.
+     * {@code new MappedFileCache(256L << 20, 1 << 20)}; {@code null} turns it off.
+     */
+    static public void setMappedFileCache(final MappedFileCache cache)
+    {
+        MappedFileCache previous = MAPPED_FILE_CACHE;
+        MAPPED_FILE_CACHE = cache;
+        if (previous != null && previous != cache) {
+            previous.clear();
+        }
+    }
+
+    static public MappedFileCache getMappedFileCache() {
+        return MAPPED_FILE_CACHE;
+    }
+
+    //built by init, or on first use when the server was set up by hand
+    static synchronized StaticFileIndex fileIndex() {
+        if (FILE_INDEX == null) {
+            FILE_INDEX = StaticFileIndex.open(new File(WEB_DIR_PATH), INDEX_PUBLIC_DIR);
+        }
+        return FILE_INDEX;
+    }
+
+    /**
+     * Streams uploaded file parts to {@code sink} instead of temporary files
+     * in {@link #UPLOAD_DIR}; {@code null} restores the default.
+     */
+    static public void setUploadSink(final UploadSink sink)
+    {
+        UPLOAD_SINK = sink;
+    }
+
+    static UploadSink getUploadSink() {
+        return UPLOAD_SINK;
+    }
+
+    //null lets File.createTempFile pick java.io.tmpdir
+    static File uploadDir() {
+        String dir = UPLOAD_DIR;
+        return dir != null ? new File(dir) : null;
+    }
+
+    /** @return request, latency and connection counters of this process */
+    static public ServerMetrics getMetrics() {
+        return METRICS;
+    }
+
+    static Executor getConnectionExecutor() {
+        return CONNECTION_EXECUTOR;
     }
 
     @Override
     public void run() {
+        if (USE_NIO && isReady()) {
+            NioEventLoop.runGroup(this, serverSocket.getChannel(), NIO_SELECTOR_COUNT);
+            return;
+        }
         while (isStart && isReady()) {
             try {
                 //wait for new connection on port 5000
                 Socket newSocket = serverSocket.accept();
-                Thread newClient = new EchoThread(newSocket);
-                newClient.start();
+                EchoThread newClient = new EchoThread(newSocket);
+                Executor executor = CONNECTION_EXECUTOR;
+                if (executor == null) {
+                    newClient.start();
+                } else {
+                    try {
+                        executor.execute(newClient);
+                    } catch (RejectedExecutionException busy) {
+                        METRICS.connectionRejected();
+                        rejectConnection(newSocket);
+                    }
+                }
             } catch (SocketTimeoutException s) {
+                METRICS.acceptTimedOut();
             } catch (IOException e) {
             }
 
         }//endof Never Ending while loop
     }
 
+    //answer right away and hang up when there is no worker left for the client
+    private static void rejectConnection(Socket socket) {
+        try {
+            socket.getOutputStream().write(serviceUnavailableResponse());
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static byte[] serviceUnavailableResponse() {
+        return errorResponse(SERVICE_UNAVAILABLE);
+    }
+
+    //empty response that also ends the connection
+    static byte[] errorResponse(String status) {
+        try {
+            return ("HTTP/1.1 " + status + " \r\n"
+                    + (status.equals(SERVICE_UNAVAILABLE) ? "Retry-After: 1\r\n" : "")
+                    + "Connection: close\r\n"
+                    + "Content-Length: 0\r\n\r\n").getBytes(ASCII_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //still a Thread so callers can start() it themselves; executors only call run() and never start it
     public class EchoThread extends Thread {
 
         protected Socket socket;
@@ -212,144 +417,286 @@ public class TinyWebServer extends Thread {
         @Override
         public void run() {
 
+            METRICS.connectionOpened();
+            HttpRequestParser parser = new HttpRequestParser();
             try {
                 DataInputStream in = null;
-                DataOutputStream out = null;
+                ConnectionOutput out = null;
 
                 if (socket.isConnected()) {
                     in = new DataInputStream(socket.getInputStream());
-                    out = new DataOutputStream(socket.getOutputStream());
+                    socket.setTcpNoDelay(true);
+                    out = new ConnectionOutput.Blocking(socket);
                 }
 
-                byte[] data = new byte[1500];
-                //socket.setSoTimeout(60 * 1000 * 5);
-
-                while (in.read(data) != -1) {
-                    String recData = new String(data).trim();
-                    Log.i(TAG, "received data: \n" + recData);
-                    Log.i(TAG, "------------------------------");
-                    String[] header = recData.split("\\r?\\n");
-
-                    String contentLen = "0";
-                    String contentType = "text/html";
-                    String connectionType = "keep-alive";
-                    String hostname = "";
-                    String userAgent = "";
-                    String encoding = "";
-
-                    String[] h1 = header[0].split(" ");
-                    if (h1.length == 3) {
-                        setRequestType(h1[0]);
-                        setHttpVer(h1[2]);
-                    }
-
-                    for (int h = 0; h < header.length; h++) {
-                        String value = header[h].trim();
-
-                        Log.i(TAG, header[h]+" -> "+CONTENT_LENGTH_PATTERN.matcher(header[h]).find());
-                        if (CONTENT_LENGTH_PATTERN.matcher(value).find()) {
-                            contentLen = value.split(":")[1].trim();
-                        } else if (CONTENT_TYPE_PATTERN.matcher(value).find()) {
-                            contentType = value.split(":")[1].trim();
-                        } else if (CONNECTION_TYPE_PATTERN.matcher(value).find()) {
-                            connectionType = value.split(":")[1].trim();
-                        } else if (CLIENT_HOST_PATTERN.matcher(value).find()) {
-                            hostname = value.split(":")[1].trim();
-                        } else if (USER_AGENT_PATTERN.matcher(value).find()) {
-                            for (String ua : value.split(":")) {
-                                if (!ua.equalsIgnoreCase("User-Agent:")) {
-                                    userAgent += ua.trim();
-                                }
-                            }
-                        } else if (ACCEPT_ENCODING_PATTERN.matcher(value).find()) {
-                            encoding = value.split(":")[1].trim();
+                byte[] data = new byte[READ_BUFFER_SIZE];
+                HttpResponse response = new HttpResponse();
+                int served = 0;
+                long headerDeadline = 0;
+
+                while (true) {
+                    // idle wait between requests, or what is left of the header deadline
+                    long wait = headerDeadline == 0 ? KEEP_ALIVE_TIMEOUT
+                            : Math.max(1, headerDeadline - System.currentTimeMillis());
+                    socket.setSoTimeout((int) wait);
+                    int n;
+                    try {
+                        n = in.read(data);
+                    } catch (SocketTimeoutException timeout) {
+                        METRICS.connectionTimedOut(parser.isReadingHeaders());
+                        if (parser.isReadingHeaders()) {
+                            out.write(errorResponse(REQUEST_TIMEOUT));
+                            out.flush();
                         }
-
+                        return;
                     }
-
-                    if (!REQUEST_TYPE.equals("")) {
-                        String postData = "";
-                        if (REQUEST_TYPE.equalsIgnoreCase("POST") && !contentLen.equals("0")) {
-                            postData = header[header.length - 1];
-                            if (postData.length() > 0 && contentLen.length() > 0) {
-                                int len = Integer.valueOf(contentLen);
-                                postData = postData.substring(0, len);
-                               Log.i(TAG, "Post data -> " + contentLen + " ->" + postData);
-                            }
+                    if (n == -1) {
+                        return;
+                    }
+                    METRICS.bytesRead(n);
+                    // one read may hold several pipelined requests, or only part of one
+                    int offset = 0;
+                    while (offset < n) {
+                        offset += parser.parse(data, offset, n - offset);
+                        if (parser.takeExpectContinue() && !parser.isComplete()) {
+                            out.write(HttpRequestParser.CONTINUE_RESPONSE);
+                            out.flush();
                         }
-
-                       Log.i(TAG, "contentLen ->" + contentLen + "\ncontentType ->" + contentType + "\nhostname ->" + hostname + "\nconnectionType-> " + connectionType + "\nhostname ->" + hostname + "\nuserAgent -> " + userAgent);
-                        final String requestLocation = h1[1];
-                        if (requestLocation != null) {
-                            processLocation(out, requestLocation, postData);
+                        if (parser.isComplete()) {
+                            headerDeadline = 0;
+                            response.requestsLeft = MAX_KEEP_ALIVE_REQUESTS - ++served;
+                            CompletableFuture<Void> pending = handleRequest(parser.getRequest(), response, out);
+                            if (pending != null) {
+                                pending.join(); // this connection has its thread anyway
+                            }
+                            boolean keepAlive = response.keepAlive;
+                            parser.reset();
+                            response.reset();
+                            if (!keepAlive) {
+                                out.flush();
+                                return;
+                            }
+                        } else if (parser.hasError()) {
+                            METRICS.parseFailed();
+                            out.write(errorResponse(parser.getError()));
+                            out.flush();
+                            return;
                         }
-                        Log.i(TAG, "requestLocation "+requestLocation);
                     }
-
+                    if (!parser.isReadingHeaders()) {
+                        headerDeadline = 0;
+                    } else if (headerDeadline == 0 && HEADER_READ_TIMEOUT > 0) {
+                        headerDeadline = System.currentTimeMillis() + HEADER_READ_TIMEOUT;
+                    }
                 }
             } catch (Exception er) {
                 er.printStackTrace();
+            } finally {
+                METRICS.connectionClosed();
+                parser.reset(); //drops a partial upload
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Answers one parsed request on {@code out}. Shared by the blocking
+     * {@link EchoThread} and the non-blocking {@link NioEventLoop}.
+     *
+     * @return null once the response is written, or a future completing when
+     * it is; request and response must stay untouched until then
+     */
+    CompletableFuture<Void> handleRequest(final HttpRequest request, final HttpResponse response, final ConnectionOutput out) {
+        ServerLog.d(TAG, "request %s %s", request.getMethod(), request.getUri());
+        response.keepAlive = request.isKeepAlive()
+                && (response.requestsLeft > 0 || MAX_KEEP_ALIVE_REQUESTS <= 0);
+
+        if (request.isMultipart()) {
+            ServerLog.d(TAG, "upload %s %s", request.getFormFields(), request.getUploadedFiles());
+        } else if (request.getBodyLength() > 0 && ServerLog.isLoggable(ServerLog.DEBUG)) {
+            ServerLog.d(TAG, "body of %d bytes%s", request.getBodyLength(), request.isBodyInMemory() ? "" : " on disk");
+        }
+
+        final String requestLocation = request.getUri();
+        final long started = System.nanoTime();
+        METRICS.requestStarted();
+        //HEAD gets the head of the GET response, body left out by out
+        out.startResponse(request.getMethod().equals("HEAD"));
+        CompletableFuture<Void> pending = null;
+        try {
+            pending = processLocation(out, requestLocation, null, request, response);
+            if (pending != null && pending.isDone()) {
+                pending.join(); // rethrows what failed the response
+                pending = null;
+            }
+        } finally {
+            if (pending == null || pending.isDone()) {
+                requestFinished(request, requestLocation, response, out, started);
             }
+        }
+        if (pending == null) {
+            return null;
+        }
+        return pending.whenComplete((ignored, er) -> requestFinished(request, requestLocation, response, out, started));
+    }
 
+    private static void requestFinished(HttpRequest request, String location, HttpResponse response,
+            ConnectionOutput out, long started) {
+        out.endResponse();
+        long nanos = System.nanoTime() - started;
+        long sent = out.takeBytesWritten();
+        METRICS.requestFinished(response.route, response.status, nanos, sent);
+        if (ACCESS_LOG && ServerLog.isLoggable(ServerLog.INFO)) {
+            ACCESS.record(request.getMethod(), location, response.status, sent, nanos);
         }
+    }
+
+    /** @deprecated the method of the request goes with it to processLocation; a non-null postData is enough for _POST */
+    @Deprecated
+    public void setRequestType(String type) {
+        legacyRequestType = type;
+    }
+
+    /** @deprecated see {@link #setRequestType} */
+    @Deprecated
+    public String getRequestType() {
+        return legacyRequestType;
+    }
+
+    /** @deprecated the version is read from each request; this value is unused */
+    @Deprecated
+    public void setHttpVer(String httpver) {
+        legacyHttpVer = httpver;
+    }
 
+    /** @deprecated see {@link #setHttpVer} */
+    @Deprecated
+    public String getHttpVer() {
+        return legacyHttpVer;
     }
 
+    /**
+     * Answers {@code location} without a parsed request, e.g. from a caller
+     * reading the socket itself. A non-null {@code postData}, or a method
+     * set with {@link #setRequestType}{@code ("POST")}, is passed as _POST.
+     */
     public void processLocation(DataOutputStream out, String location, String postData) {
+        CompletableFuture<Void> pending = processLocation(out, location, postData, null, new HttpResponse());
+        if (pending != null) {
+            pending.join();
+        }
+    }
 
-        String data = "";
+    /**
+     * request, when known, supplies the conditional GET headers and the body; response is filled in for this request only.
+     * @return null once the response is written, or for an asynchronous WebApi method a future completing when it is
+     */
+    CompletableFuture<Void> processLocation(final DataOutputStream out, String location, String postData,
+            final HttpRequest request, final HttpResponse response) {
+
+        CompletableFuture<Void> pending = null;
+        if (METRICS_PATH != null && isPath(location, METRICS_PATH)) {
+            response.route = ServerMetrics.ROUTE_METRICS;
+            response.contentType = "text/plain; version=0.0.4";
+            constructHeader(out, request, response, METRICS.render());
+            return null;
+        }
         switch (location) {
             case "/":
                 //root location, server index file
-                CONTENT_TYPE = "text/html";
-                data=readFile(WEB_DIR_PATH+"/"+INDEX_FILE_NAME);
-                constructHeader(out, data.length() + "", data);
+                sendIndexed(out, request, response, location);
                 break;
             default:
 
-                Log.i(TAG, "url location -> " + location);
+                ServerLog.d(TAG, "url location -> %s", location);
                 URL geturl = getDecodedUrl("http://localhost" + location);
                 String[] dirPath = geturl.getPath().split("/");
                 String fullFilePath=geturl.getPath();
-                if (dirPath.length > 1) {
+                String directory = fullFilePath.endsWith("/") ? StaticFileIndex.normalize(fullFilePath) : null;
+                if (fullFilePath.endsWith("/") && (directory == null || fileIndex().find(directory) != null)) {
+                    //a directory with an index file, or a path leaving WEB_DIR_PATH, which sendIndexed rejects
+                    sendIndexed(out, request, response, fullFilePath);
+                } else if (dirPath.length > 1) {
                     String fileName = dirPath[dirPath.length - 1];
-                    HashMap qparms = (HashMap) splitQuery(geturl.getQuery());
-                    if(REQUEST_TYPE.equals("POST")){
-                        if (qparms==null){ qparms=new HashMap<String,String>();}
+                    //decoded one parameter at a time as the method asks for them, form bodies included
+                    HashMap qparms = new RequestParams(geturl.getQuery(),
+                            request != null && request.getMethod().equals("POST") ? request : null);
+                    if(request != null && request.getMethod().equals("POST")){
+                        if (request.isMultipart()) {
+                            //form fields as parameters, files as UploadedFile metadata
+                            qparms.putAll(request.getFormFields());
+                            qparms.put("_FILES", request.getUploadedFiles());
+                        } else {
+                            //_REQUEST streams the body; _POST is only there for bodies small enough to be kept in memory
+                            qparms.put("_REQUEST", request);
+                            if (postData != null) {
+                                qparms.put("_POST", postData);
+                            } else if (request.isBodyInMemory()) {
+                                qparms.put("_POST", request.getBodyAsString());
+                            }
+                        }
+                    } else if (request == null && (postData != null || "POST".equals(legacyRequestType))) {
+                        //the public processLocation(out, location, postData) of callers without an HttpRequest
                         qparms.put("_POST", postData);
                     }
-                    Log.i(TAG, "File name " + fileName);
-                    Log.i(TAG, "url parms " + qparms);
-                    CONTENT_TYPE = getContentType(fileName);
-                    if(!CONTENT_TYPE.equals("text/plain")){
-                       Log.i(TAG, "Full file path - >"+fullFilePath +" "+CONTENT_TYPE);
-
-                        if(CONTENT_TYPE.equals("image/jpeg") || CONTENT_TYPE.equals("image/png") || CONTENT_TYPE.equals("video/mp4")){
-                           byte[] bytdata=readImageFiles(WEB_DIR_PATH+fullFilePath,CONTENT_TYPE); 
-                           Log.i(TAG, String.valueOf(bytdata.length));
-                           if(bytdata!=null){
-                                constructHeaderImage(out, bytdata.length+"", bytdata);
-                           }else{
-                                 pageNotFound();
-                           }
-                        }else{
-                            data=readFile(WEB_DIR_PATH+fullFilePath);
-                            if(!data.equals("")){
-                                constructHeader(out, data.length() + "", data);
-                            }else{
-                                pageNotFound();
+                    ServerLog.d(TAG, "file name %s, url parms %s", fileName, qparms);
+                    response.contentType = getContentType(fileName);
+                    if(!response.contentType.equals("text/plain")){
+                       ServerLog.d(TAG, "full file path %s %s", fullFilePath, response.contentType);
+                        sendIndexed(out, request, response, fullFilePath);
+                    }else{
+                        RouteTable.Route route = findRoute(fullFilePath);
+                        if (route != null && route.streaming) {
+                            pending = streamRoute(route, qparms, request, out, response);
+                        } else {
+                            Object result = callRoute(route, qparms, request, response);
+                            if (result instanceof CompletableFuture) {
+                                //written by the thread completing the method's future
+                                pending = ((CompletableFuture<?>) result).thenAccept(
+                                        value -> sendResult(out, request, response, value));
+                            } else {
+                                sendResult(out, request, response, result);
                             }
                         }
-                    }else{
-                        data = getResultByName(fileName, qparms);
-                        constructHeader(out, data.length() + "", data);
                     }
                     
                     
                 }
 
         }
+        return pending;
+    }
+
+    /**
+     * Serves {@code path} of the public directory, or the index file of a
+     * path ending in '/', looked up in the file index: paths that leave
+     * WEB_DIR_PATH get 400 and unknown ones 404 without touching the disk.
+     */
+    private void sendIndexed(DataOutputStream out, HttpRequest request, HttpResponse response, String path) {
+        String normalized = StaticFileIndex.normalize(path);
+        if (normalized == null) {
+            ServerLog.d(TAG, "rejected path %s", path);
+            constructHeader(out, request, response, badRequest(response));
+            return;
+        }
+        StaticFileIndex.Entry entry = fileIndex().find(normalized);
+        if (entry == null) {
+            constructHeader(out, request, response, pageNotFound(response));
+            return;
+        }
+        response.contentType = normalized.endsWith("/") ? "text/html" : entry.contentType;
+        sendFile(out, request, response, entry.file, entry.gzip);
+    }
 
+    //whether the request target names path, with or without a query
+    private static boolean isPath(String location, String path) {
+        return location.startsWith(path)
+                && (location.length() == path.length() || location.charAt(path.length()) == '?');
     }
 
     public URL getDecodedUrl(String parms) {
@@ -362,6 +709,7 @@ public class TinyWebServer extends Thread {
         return null;
     }
 
+    //decodes every parameter up front and gives null for any malformed one, WebApi methods get a RequestParams
     public static HashMap<String, String> splitQuery(String parms) {
         try {
             final HashMap<String, String> query_pairs = new HashMap<>();
@@ -382,50 +730,253 @@ public class TinyWebServer extends Thread {
     }
 
     public String getResultByName(String name, HashMap qparms) {
+        return getResultByName(name, qparms, new HttpResponse());
+    }
+
+    //asynchronous methods are waited for, streaming ones collected into the String and other results written as JSON
+    public String getResultByName(String name, HashMap qparms, HttpResponse response) {
+        Object result = callRoute(findRoute(name), qparms, null, response);
+        if (result instanceof CompletableFuture) {
+            result = ((CompletableFuture<?>) result).join();
+        }
+        return resultText(result, response);
+    }
+
+    //the result as a String body, JSON unless it is one already
+    static String resultText(Object result, HttpResponse response) {
+        if (result == null || result instanceof CharSequence) {
+            return String.valueOf(result);
+        }
+        setJsonContentType(response);
+        return JsonWriter.toJson(result);
+    }
+
+    //methods that left the content type at its default get application/json for results that are not Strings
+    private static void setJsonContentType(HttpResponse response) {
+        if (response.contentType == null || response.contentType.equals("text/plain")
+                || response.contentType.equals("text/html")) {
+            response.contentType = "application/json";
+        }
+    }
+
+    /**
+     * Writes a WebApi result: Strings as they are, anything else as JSON
+     * encoded straight into this thread's reused buffer. JSON beyond
+     * {@link #JSON_BUFFER_LIMIT} is sent chunked while it is written, without
+     * ETag or compression, except on an event loop thread, which must not
+     * wait for the client and so collects all of it.
+     */
+    private void sendResult(DataOutputStream out, HttpRequest request, HttpResponse response, Object result) {
+        if (result == null || result instanceof CharSequence) {
+            constructHeader(out, request, response, String.valueOf(result));
+            return;
+        }
+        setJsonContentType(response);
+        ChunkedResponseStream overflow = null;
+        if (!(out instanceof ConnectionOutput && ((ConnectionOutput) out).isEventLoop())) {
+            overflow = new ChunkedResponseStream(this, out, request, response);
+        }
+        JsonWriter json = JsonWriter.get(overflow, JSON_BUFFER_LIMIT);
         try {
-            Class<?> rClass = Class.forName(WEB_API_CLASSNAME); // convert string classname to class
-            Object obj = rClass.newInstance();          // invoke empty constructor
-            Method getNameMethod = obj.getClass().getMethod(name, HashMap.class);
-            STATUS = TinyWebServer.OKAY;
-            Log.i(TAG, String.format("Trying to call method %s from %s class object", name, WEB_API_CLASSNAME));
-            return getNameMethod.invoke(obj, qparms).toString();
-        } catch (Exception er) {
+            json.value(result);
+            if (json.hasOverflowed()) {
+                json.flush();
+                overflow.close();
+            } else {
+                constructHeader(out, request, response, json.buffer(), json.length(), true);
+            }
+        } catch (IOException | RuntimeException er) {
+            if (er instanceof IOException && json.hasOverflowed()) {
+                ServerLog.d(TAG, "JSON of %s aborted: %s", response.route, er);
+            } else {
+                er.printStackTrace();
+            }
+            if (overflow == null || !overflow.isCommitted()) {
+                constructHeader(out, request, response, internalError(response));
+            } else {
+                response.keepAlive = false; // cut short without its last chunk
+            }
+        } finally {
+            json.release();
+        }
+    }
+
+    static RouteTable.Route findRoute(String name) {
+        RouteTable table = ROUTES;
+        return (table != null ? table : routes()).find(name);
+    }
+
+    /**
+     * Runs a WebApi method, null for none. @Cached routes answer GET
+     * requests, and calls without a request, from their cache, with a future
+     * while an identical request is still running the method.
+     *
+     * @return the result, or for a method returning a future, a future of
+     * the result that completes with response's status set, after an error
+     * or timeout included; error pages are Strings
+     */
+    Object callRoute(RouteTable.Route route, HashMap qparms, HttpRequest request, final HttpResponse response) {
+        if (route == null) {
+            response.route = ServerMetrics.ROUTE_UNMATCHED;
+            return pageNotFound(response);
+        }
+        response.route = route.path;
+        try {
+            response.status = TinyWebServer.OKAY;
+            ServerLog.d(TAG, "calling method %s of %s", route.path, route.method.getDeclaringClass().getName());
+            if (route.cache != null && (request == null || request.getMethod().equals("GET"))) {
+                Object cached = route.cache.get(route, qparms, response);
+                if (cached instanceof CompletableFuture) {
+                    //another request is running the method for these parameters, answered when it completes
+                    return asyncResult(route, (CompletableFuture<?>) cached, response);
+                }
+                return cached;
+            }
+            if (route.streaming) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                route.invoke(qparms, response, body);
+                return new String(body.toByteArray(), HttpRequest.UTF_8);
+            }
+            Object result = route.invoke(qparms, response);
+            if (route.async && result != null) {
+                return asyncResult(route, ((CompletionStage<?>) result).toCompletableFuture(), response);
+            }
+            return result;
+        } catch (Throwable er) {
             er.printStackTrace();
-            return pageNotFound();
+            return internalError(response);
         }
     }
 
-    public void setRequestType(String type) {
-       Log.i(TAG, "REQUEST TYPE " + type);
-        this.REQUEST_TYPE = type;
+    /**
+     * Runs a streaming method with a {@link ChunkedResponseStream} as its
+     * body. On an event loop thread the method gets a thread of its own, as
+     * it blocks whenever the client reads slower than it writes.
+     *
+     * @return null once the response is written, or a future completing when it is
+     */
+    private CompletableFuture<Void> streamRoute(final RouteTable.Route route, final HashMap qparms,
+            final HttpRequest request, final DataOutputStream out, final HttpResponse response) {
+        response.route = route.path;
+        response.status = OKAY;
+        if (out instanceof ConnectionOutput && ((ConnectionOutput) out).isEventLoop()) {
+            try {
+                return CompletableFuture.runAsync(() -> stream(route, qparms, request, out, response), streamThreads());
+            } catch (RejectedExecutionException busy) {
+                METRICS.connectionRejected();
+                constructHeader(out, request, response, serviceUnavailable(response));
+                return null;
+            }
+        }
+        stream(route, qparms, request, out, response);
+        return null;
     }
 
-    public void setHttpVer(String httpver) {
-       Log.i(TAG, "REQUEST ver " + httpver);
-        this.HTTP_VER = httpver;
+    private void stream(RouteTable.Route route, HashMap qparms, HttpRequest request, DataOutputStream out,
+            HttpResponse response) {
+        ChunkedResponseStream body = new ChunkedResponseStream(this, out, request, response);
+        try {
+            ServerLog.d(TAG, "streaming method %s of %s", route.path, route.method.getDeclaringClass().getName());
+            route.invoke(qparms, response, body);
+            body.close();
+        } catch (Throwable er) {
+            if (er instanceof IOException) {
+                ServerLog.d(TAG, "stream of %s aborted: %s", route.path, er);
+            } else {
+                er.printStackTrace();
+            }
+            if (!body.isCommitted()) {
+                constructHeader(out, request, response, internalError(response));
+            } else {
+                response.keepAlive = false; // the body ends without its last chunk, so the client sees it cut short
+            }
+        }
     }
 
-    public String getRequestType() {
-        return this.REQUEST_TYPE;
+    //head of a streamed body: Content-Length when size is known, else chunked or, for HTTP/1.0, neither
+    void writeStreamHead(DataOutputStream output, HttpResponse response, long size, boolean chunked) throws IOException {
+        writeHeaders(output, response, size, chunked ? "Transfer-Encoding: chunked\r\n" : null, null);
     }
 
-    public String getHttpVer() {
-        return this.HTTP_VER;
+    //the method's future limited to its timeout, with failures turned into error pages
+    private static CompletableFuture<Object> asyncResult(final RouteTable.Route route, CompletableFuture<?> future,
+            final HttpResponse response) {
+        long millis = route.timeoutMillis >= 0 ? route.timeoutMillis : ASYNC_TIMEOUT;
+        return AsyncTimeouts.within(future, millis).handle((value, er) -> {
+            if (er == null) {
+                return value;
+            }
+            Throwable cause = er instanceof CompletionException && er.getCause() != null ? er.getCause() : er;
+            if (cause instanceof TimeoutException) {
+                ServerLog.w(TAG, route.path + " did not complete within " + millis + "ms");
+                return timedOut(response, route.timeoutStatus);
+            }
+            cause.printStackTrace();
+            return internalError(response);
+        });
+    }
+
+    static public String pageNotFound(HttpResponse response) {
+        response.status = NOT_FOUND;
+        response.contentType = "text/html";
+        return pageNotFound();
     }
 
     static public String pageNotFound() {
-        STATUS = NOT_FOUND;
-        CONTENT_TYPE = "text/html";
         //customize your page here
         return "<!DOCTYPE html>"
                 + "<html><head><title>Page not found | Firefly web server</title>"
                 + "</head><body><h3>Requested page not found</h3></body></html>";
     }
 
-    //hashtable initilization for content types
+    static public String internalError(HttpResponse response) {
+        response.status = INTERNAL_ERROR;
+        response.contentType = "text/html";
+        return "<!DOCTYPE html>"
+                + "<html><head><title>Internal error | Firefly web server</title>"
+                + "</head><body><h3>Request failed</h3></body></html>";
+    }
+
+    static public String timedOut(HttpResponse response, String status) {
+        response.status = status;
+        response.contentType = "text/html";
+        return "<!DOCTYPE html>"
+                + "<html><head><title>Timed out | Firefly web server</title>"
+                + "</head><body><h3>The request took too long</h3></body></html>";
+    }
+
+    //a slow client holds its streaming thread for up to WRITE_TIMEOUT, so the pool is bounded like the connection executors
+    private static synchronized ExecutorService streamThreads() {
+        if (STREAM_THREADS == null) {
+            int threads = Math.max(1, STREAM_THREADS_MAX);
+            STREAM_THREADS = ConnectionExecutors.boundedPool(threads, threads);
+        }
+        return STREAM_THREADS;
+    }
+
+    //like the 503 of a rejected connection: retry soon, on a new connection
+    static public String serviceUnavailable(HttpResponse response) {
+        response.status = SERVICE_UNAVAILABLE;
+        response.contentType = "text/html";
+        response.keepAlive = false;
+        response.addHeader("Retry-After", "1");
+        return "<!DOCTYPE html>"
+                + "<html><head><title>Service unavailable | Firefly web server</title>"
+                + "</head><body><h3>The server is busy</h3></body></html>";
+    }
+
+    static public String badRequest(HttpResponse response) {
+        response.status = BAD_REQUEST;
+        response.contentType = "text/html";
+        return "<!DOCTYPE html>"
+                + "<html><head><title>Bad request | Firefly web server</title>"
+                + "</head><body><h3>Invalid request path</h3></body></html>";
+    }
+
+    //hashtable initilization for content types, static so the file index can use it before a server exists
     static Hashtable<String, String> mContentTypes = new Hashtable();
 
-    {
+    static {
         mContentTypes.put("js", "application/javascript");
         mContentTypes.put("php", "text/html");
         mContentTypes.put("java", "text/html");
@@ -454,7 +1005,7 @@ public class TinyWebServer extends Thread {
         if (index != -1) {
             String e = path.substring(index + 1);
             String ct = mContentTypes.get(e);
-           Log.i(TAG, "content type: " + ct);
+           ServerLog.d(TAG, "content type: %s", ct);
             if (ct != null) {
                 return ct;
             }
@@ -462,95 +1013,332 @@ public class TinyWebServer extends Thread {
         return null;
     }
 
-    private void constructHeader(DataOutputStream output, String size, String data) {
-        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)), false);
-        pw.append("HTTP/1.1 ").append(STATUS).append(" \r\n");
-        if (this.CONTENT_TYPE != null) {
-            printHeader(pw, "Content-Type", this.CONTENT_TYPE);
+    //successful responses get an ETag from the body so unchanged content goes out as 304
+    void constructHeader(DataOutputStream output, HttpRequest request, HttpResponse response, String data) {
+        //Content-Length counts bytes, not chars
+        byte[] body = data.getBytes(HttpRequest.UTF_8);
+        constructHeader(output, request, response, body, body.length, false);
+    }
+
+    //the first length bytes of body; reused when the caller writes into body again once this returns
+    private void constructHeader(DataOutputStream output, HttpRequest request, HttpResponse response,
+            byte[] body, int length, boolean reused) {
+        String validators = null;
+        if (request != null && response.status.equals(OKAY)) {
+            String extraHeaders = "";
+            String encoding = null;
+            if (COMPRESSION_LEVEL > 0 && Compression.isCompressible(response.contentType)) {
+                encoding = length >= COMPRESSION_MIN_SIZE ? Compression.negotiate(request) : null;
+                if (encoding != null) {
+                    body = Compression.compress(body, 0, length, encoding, COMPRESSION_LEVEL);
+                    length = body.length;
+                    reused = false;
+                    extraHeaders = "Content-Encoding: " + encoding + "\r\n";
+                }
+                extraHeaders += Compression.VARY;
+            }
+            String etag = ConditionalRequests.etag(body, 0, length);
+            if (response.etag != null) {
+                etag = encoding != null ? Compression.encodedEtag(response.etag, encoding) : response.etag;
+            }
+            validators = ConditionalRequests.validatorHeaders(etag, 0) + extraHeaders;
+            if (ConditionalRequests.isNotModified(request, etag, 0)) {
+                constructNotModified(output, response, validators);
+                return;
+            }
+        }
+        if (reused && output instanceof ConnectionOutput && ((ConnectionOutput) output).retainsBody()) {
+            body = Arrays.copyOf(body, length);
         }
-        printHeader(pw, "Date", gmtFrmt.format(new Date()));
-        printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
-        printHeader(pw, "Content-Length", size);
-        printHeader(pw, "Server", SERVER_NAME);
-        pw.append("\r\n");
-        pw.append(data);
-        pw.flush();
-        //pw.close();
+        try{
+            writeResponse(output, response, length, validators, null, body, 0, length);
+            output.flush();
+        }catch(Exception er){er.printStackTrace();}
     }
     
-    private void constructHeaderImage(DataOutputStream output, String size, byte[] data) {
+    void constructHeaderImage(DataOutputStream output, HttpResponse response, long size, byte[] data) {
         try{
-        
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output)), false);
-            pw.append("HTTP/1.1 ").append(STATUS).append(" \r\n");
-            if (this.CONTENT_TYPE != null) {
-                printHeader(pw, "Content-Type", this.CONTENT_TYPE);
-            }
-            printHeader(pw, "Date", gmtFrmt.format(new Date()));
-            printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
-            printHeader(pw, "Content-Length", size);
-            printHeader(pw, "Server", SERVER_NAME);
-            pw.append("\r\n");
-            pw.flush();
-            output.write(data);
+            writeResponse(output, response, size, null, null, data, 0, data.length);
             output.flush();
-            Log.i(TAG, "data sent success");
-        
-        //pw.close();
         }catch(Exception er){er.printStackTrace();}
 
     }
 
+    //sends a slice of the shared mapping, the caller keeps its reference until this returns
+    private void constructHeaderMapped(DataOutputStream output, HttpResponse response, MappedFileCache.Mapping mapping, String validators) {
+        try{
+            writeHeaders(output, response, mapping.size, validators, null);
+            if (output instanceof ConnectionOutput) {
+                ((ConnectionOutput) output).writeMapped(mapping, 0, mapping.size);
+            } else {
+                Channels.newChannel(output).write(mapping.slice(0, mapping.size));
+            }
+            output.flush();
+        }catch(Exception er){er.printStackTrace();}
+    }
 
-    @SuppressWarnings("static-method")
-    protected void printHeader(PrintWriter pw, String key, String value) {
-        pw.append(key).append(": ").append(value).append("\r\n");
+    //streams the file from disk to the socket, its bytes never enter the Java heap
+    private void constructHeaderFile(DataOutputStream output, HttpResponse response, FileChannel file, String validators) {
+        try{
+            long size = file.size();
+            writeHeaders(output, response, size, validators, null);
+            if (output instanceof ConnectionOutput) {
+                ((ConnectionOutput) output).transferFrom(file, 0, size); //closes the file
+                return;
+            }
+            file.transferTo(0, size, Channels.newChannel(output));
+            output.flush();
+        }catch(Exception er){er.printStackTrace();}
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
     }
-    
-    public byte[] readImageFiles(String fileName,String filetype){
+
+    private void constructHeaderCached(DataOutputStream output, HttpResponse response, StaticFileCache.Entry entry) {
         try{
-        File ifile=new File(fileName);
-            if(ifile.exists()){
-                if(filetype.equalsIgnoreCase("image/png") || filetype.equalsIgnoreCase("image/jpeg") || filetype.equalsIgnoreCase("image/gif") || filetype.equalsIgnoreCase("image/jpg")){
-                           FileInputStream fis = new FileInputStream(fileName);
-                           byte[] buffer = new byte[fis.available()];
-                           while (fis.read(buffer) != -1) {}
-                           fis.close();
-                           return buffer; 
+            writeResponse(output, response, -1, null, entry.headers, entry.body, 0, entry.body.length);
+            output.flush();
+        }catch(Exception er){er.printStackTrace();}
+    }
+
+    private void constructNotModified(DataOutputStream output, HttpResponse response, String validators) {
+        response.status = NOT_MODIFIED;
+        response.contentType = null;
+        try{
+            writeHeaders(output, response, -1, validators, null);
+            output.flush();
+        }catch(Exception er){er.printStackTrace();}
+    }
+
+    /**
+     * Writes the status line and headers. {@code size} may be -1 and
+     * {@code extraHeaders} null; {@code entityHeaders}, when given, already
+     * holds the Content-Type and Content-Length lines.
+     */
+    private void writeHeaders(DataOutputStream output, HttpResponse response, long size, String extraHeaders, byte[] entityHeaders) throws IOException {
+        writeResponse(output, response, size, extraHeaders, entityHeaders, null, 0, 0);
+    }
+
+    //head encoded to bytes by ResponseWriter, then sent with the body in one write
+    private void writeResponse(DataOutputStream output, HttpResponse response, long size, String extraHeaders, byte[] entityHeaders,
+                               byte[] body, int offset, int length) throws IOException {
+        ResponseWriter head = ResponseWriter.get().statusLine(response.status);
+        if (response.contentType != null && entityHeaders == null) {
+            head.contentType(response.contentType);
+        }
+        head.date().connection(response.keepAlive);
+        if (response.keepAlive && KEEP_ALIVE_TIMEOUT > 0) {
+            head.keepAlive(KEEP_ALIVE_TIMEOUT / 1000, response.requestsLeft);
+        }
+        if (size >= 0) {
+            head.contentLength(size);
+        }
+        head.header("Server", SERVER_NAME);
+        if (extraHeaders != null) {
+            head.ascii(extraHeaders);
+        }
+        head.ascii(response.getExtraHeaders());
+        if (entityHeaders != null) {
+            head.bytes(entityHeaders);
+        }
+        head.crlf();
+        if (output instanceof ConnectionOutput) {
+            ((ConnectionOutput) output).sendResponse(head.buffer(), head.length(), body, offset, length);
+        } else {
+            output.write(head.buffer(), 0, head.length());
+            if (body != null) {
+                output.write(body, offset, length);
+            }
+        }
+    }
+
+    //gzip is the file's precompressed sidecar, or null
+    private void sendFile(DataOutputStream output, HttpRequest request, HttpResponse response, File file, File gzip) {
+        //compressed representations are only offered for whole-file requests
+        boolean compressible = COMPRESSION_LEVEL > 0 && Compression.isCompressible(response.contentType);
+        String encoding = null;
+        if (compressible && (request == null || request.getHeader("Range") == null)) {
+            encoding = Compression.negotiate(request);
+        }
+        String vary = compressible ? Compression.VARY : "";
+        File source = file;
+        String sourceEncoding = null;
+        if (gzip != null && Compression.GZIP.equals(encoding)) {
+            source = gzip;
+            sourceEncoding = Compression.GZIP;
+        }
+
+        StaticFileCache cache = FILE_CACHE;
+        StaticFileCache.Entry cached = cache != null ? cache.get(source, response.contentType, sourceEncoding) : null;
+        if (cached != null && encoding != null && sourceEncoding == null
+                && cached.body.length >= COMPRESSION_MIN_SIZE) {
+            cached = cache.getCompressed(file, cached, response.contentType, encoding, COMPRESSION_LEVEL);
+        }
+        if (cached != null) {
+            String validators = cached.validators + vary;
+            if (ConditionalRequests.isNotModified(request, cached.etag, cached.lastModified)) {
+                constructNotModified(output, response, validators);
+                return;
+            }
+            List<long[]> ranges = ByteRanges.parse(request, cached.etag, cached.lastModified, cached.body.length);
+            if (ranges != null) {
+                constructPartial(output, response, file, cached.body, null, cached.body.length, validators, ranges);
+                return;
+            }
+            response.status = OKAY;
+            constructHeaderCached(output, response, cached);
+            return;
+        }
+        MappedFileCache mappedCache = MAPPED_FILE_CACHE;
+        MappedFileCache.Mapping mapping = mappedCache != null ? mappedCache.acquire(source) : null;
+        FileChannel channel = null;
+        String validators;
+        try {
+            long length;
+            long lastModified;
+            if (mapping != null) {
+                length = mapping.size;
+                lastModified = mapping.lastModified;
+            } else {
+                channel = new FileInputStream(source).getChannel();
+                length = channel.size();
+                lastModified = source.lastModified();
+            }
+            String etag = ConditionalRequests.etag(length, lastModified);
+            validators = ConditionalRequests.validatorHeaders(etag, lastModified) + vary;
+            if (ConditionalRequests.isNotModified(request, etag, lastModified)) {
+                closeQuietly(channel);
+                constructNotModified(output, response, validators);
+                return;
+            }
+            List<long[]> ranges = ByteRanges.parse(request, etag, lastModified, length);
+            if (ranges != null) {
+                closeQuietly(channel);
+                constructPartial(output, response, file, null, mapping, length, validators, ranges);
+                return;
+            }
+            response.status = OKAY;
+            validators += sourceEncoding != null ? "Content-Encoding: " + sourceEncoding + "\r\n" : ByteRanges.ACCEPT_RANGES;
+            if (mapping != null) {
+                constructHeaderMapped(output, response, mapping, validators);
+            } else {
+                constructHeaderFile(output, response, channel, validators);
+            }
+        } catch (IOException er) {
+            //missing file or a directory
+            constructHeader(output, request, response, pageNotFound(response));
+        } finally {
+            if (mapping != null) {
+                mapping.release();
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 206 with only the requested slices of the file, as multipart/byteranges
+     * when there are several, or 416 when none of them is satisfiable.
+     * {@code body} is the cached file content and {@code mapping} the mapped
+     * file; with neither the slices are read from disk.
+     */
+    private void constructPartial(DataOutputStream output, HttpResponse response, File file, byte[] body,
+                                  MappedFileCache.Mapping mapping, long length, String validators, List<long[]> ranges) {
+        try{
+            if (ranges.isEmpty()) {
+                response.status = RANGE_NOT_SATISFIABLE;
+                writeHeaders(output, response, 0, "Content-Range: bytes */" + length + "\r\n", null);
+                output.flush();
+                return;
+            }
+            response.status = PARTIAL_NO_CONTENT;
+            validators += ByteRanges.ACCEPT_RANGES;
+            if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                writeHeaders(output, response, range[1] - range[0] + 1,
+                        validators + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n", null);
+                writeSlice(output, file, body, mapping, range[0], range[1] - range[0] + 1);
+            } else {
+                String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+                String[] partHeaders = new String[ranges.size()];
+                long size = 0;
+                for (int i = 0; i < partHeaders.length; i++) {
+                    long[] range = ranges.get(i);
+                    partHeaders[i] = "\r\n--" + boundary + "\r\n"
+                            + "Content-Type: " + response.contentType + "\r\n"
+                            + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+                    size += partHeaders[i].length() + range[1] - range[0] + 1;
                 }
-            }else{
-            
+                String end = "\r\n--" + boundary + "--\r\n";
+                size += end.length();
+                response.contentType = "multipart/byteranges; boundary=" + boundary;
+                writeHeaders(output, response, size, validators, null);
+                for (int i = 0; i < partHeaders.length; i++) {
+                    long[] range = ranges.get(i);
+                    output.write(partHeaders[i].getBytes(HttpRequest.UTF_8));
+                    writeSlice(output, file, body, mapping, range[0], range[1] - range[0] + 1);
+                }
+                output.write(end.getBytes(HttpRequest.UTF_8));
             }
-          }catch(Exception er){}
+            output.flush();
+        }catch(Exception er){er.printStackTrace();}
+    }
+
+    private void writeSlice(DataOutputStream output, File file, byte[] body, MappedFileCache.Mapping mapping,
+                            long start, long count) throws IOException {
+        if (body != null) {
+            output.write(body, (int) start, (int) count);
+            return;
+        }
+        if (mapping != null && output instanceof ConnectionOutput) {
+            ((ConnectionOutput) output).writeMapped(mapping, start, count);
+            return;
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
+        if (output instanceof ConnectionOutput) {
+            ((ConnectionOutput) output).transferFrom(channel, start, count); //closes the file
+            return;
+        }
+        try {
+            channel.transferTo(start, count, Channels.newChannel(output));
+        } finally {
+            channel.close();
+        }
+    }
+
+    
+    public byte[] readImageFiles(String fileName,String filetype){
+        try{
+            return readBytes(new File(fileName));
+        }catch(Exception er){}
         return null;
     }
     static public String readFile(String fileName){
-        String content="";    
         try{
-            File ifile=new File(fileName);
-            if(ifile.exists()){
-                FileInputStream fis = new FileInputStream(fileName);
-                    byte[] buffer = new byte[10];
-                    StringBuilder sb = new StringBuilder();
-                    while (fis.read(buffer) != -1) {
-                            sb.append(new String(buffer));
-                            buffer = new byte[10];
-                    }
-                    fis.close();
-                    content = sb.toString();
-            }else{
-                pageNotFound();
-                return content;
-            }
+            return new String(readBytes(new File(fileName)), HttpRequest.UTF_8);
         }catch(Exception er){
             pageNotFound();
             return "";
         }
-        return content;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        DataInputStream fis = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            fis.readFully(buffer);
+            return buffer;
+        } finally {
+            fis.close();
+        }
     }
     
     
@@ -559,10 +1347,16 @@ public class TinyWebServer extends Thread {
         SERVER_PORT=port;
         WEB_DIR_PATH=public_dir;
         scanFileDirectory();
+        synchronized (TinyWebServer.class) {
+            if (FILE_INDEX != null) {
+                FILE_INDEX.close();
+            }
+            FILE_INDEX = StaticFileIndex.open(new File(public_dir), INDEX_PUBLIC_DIR);
+        }
     }
     
     public static void startServer(String ip,int port,String public_dir){
-        Log.i(TAG, "Server Starting");
+        ServerLog.i(TAG, "Server Starting");
         init(ip,port,public_dir);
 
         new Thread(() -> {
@@ -572,11 +1366,12 @@ public class TinyWebServer extends Thread {
             {
                 SERVER_ADDRESS = null;
             } finally {
-                Log.i(TAG, String.format("startServer: got IP %s for %s:%d\"", SERVER_ADDRESS.toString(), SERVER_IP, SERVER_PORT));
+                ServerLog.i(TAG, "startServer: got IP %s for %s:%d", SERVER_ADDRESS, SERVER_IP, SERVER_PORT);
                 try {
-                    new TinyWebServer(SERVER_ADDRESS, SERVER_PORT).start();
-                    isStart=true;
-                    Log.i(TAG, "Server Started !");
+                    TinyWebServer server = new TinyWebServer(SERVER_ADDRESS, SERVER_PORT);
+                    isStart=true; //before start(), the accept loop checks it
+                    server.start();
+                    ServerLog.i(TAG, "Server Started !");
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -589,7 +1384,7 @@ public class TinyWebServer extends Thread {
             try{
             isStart=false;
             serverSocket.close();
-            Log.i(TAG, "Server stopped running !");
+            ServerLog.i(TAG, "Server stopped running !");
             }catch(IOException er){
                 er.printStackTrace();
             }
@@ -608,17 +1403,17 @@ public class TinyWebServer extends Thread {
                     if(allFile.getName().split("\\.")[0].equalsIgnoreCase("index")){
                         TinyWebServer.INDEX_FILE_NAME=allFile.getName();
                         isIndexFound=true;
-                        Log.i(TAG, "scanFileDirectory: file taken as index "+allFile.getName());
+                        ServerLog.i(TAG, "scanFileDirectory: file taken as index "+allFile.getName());
                     }
                 }
             }
             
         } catch(Exception er){
-            Log.e(TAG, "scanFileDirectory: Unknown Exception!");
+            ServerLog.e(TAG, "scanFileDirectory: Unknown Exception!");
         }
         
         if(!isIndexFound){
-            Log.w(TAG, "scanFileDirectory: Index file not found !");
+            ServerLog.w(TAG, "scanFileDirectory: Index file not found !");
         }
     }
     
@@ -628,7 +1423,7 @@ public class TinyWebServer extends Thread {
 
             Thread t = new TinyWebServer(SERVER_IP, SERVER_PORT);
             t.start();
-            Log.i(TAG, "Server Started !");
+            ServerLog.i(TAG, "Server Started !");
 
         } catch (IOException e) {
             e.printStackTrace();
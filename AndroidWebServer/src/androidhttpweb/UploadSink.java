@@ -0,0 +1,19 @@
+package androidhttpweb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination for uploaded file parts, see
+ * {@link TinyWebServer#setUploadSink}. Called on the connection's thread as
+ * each file part starts; the returned stream receives the part's bytes as
+ * they arrive and is closed at the end of the part.
+ */
+public interface UploadSink {
+
+    /**
+     * @param file name, field and type of the part; its size is still 0
+     * @return where the part's data goes
+     */
+    OutputStream open(UploadedFile file) throws IOException;
+}
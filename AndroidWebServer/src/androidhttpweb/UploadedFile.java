@@ -0,0 +1,57 @@
+package androidhttpweb;
+
+import java.io.File;
+
+/**
+ * One file part of a multipart/form-data upload, as handed to WebApi
+ * methods in the {@code _FILES} list of their parameters. The data itself
+ * was streamed to {@link #getFile()}, or to the {@link UploadSink} set with
+ * {@link TinyWebServer#setUploadSink}.
+ * <p>
+ * Temporary files are deleted once the response has been written; move
+ * or copy the file from the WebApi method to keep it.
+ */
+public class UploadedFile {
+
+    private final String fieldName;
+    private final String fileName;
+    private final String contentType;
+    File file;
+    long size;
+
+    UploadedFile(String fieldName, String fileName, String contentType) {
+        this.fieldName = fieldName;
+        this.fileName = fileName;
+        this.contentType = contentType;
+    }
+
+    /** @return the name of the form field */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /** @return the file name sent by the client, without any directory */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /** @return the part's Content-Type, application/octet-stream when absent */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /** @return bytes received; final once the WebApi method is called */
+    public long getSize() {
+        return size;
+    }
+
+    /** @return the temporary file holding the data, or null when an {@link UploadSink} took it */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return fieldName + "=" + fileName + " (" + contentType + ", " + size + " bytes)";
+    }
+}
@@ -1,17 +1,21 @@
-package androidhttpweb;
-
-import java.util.Calendar;
-import java.util.HashMap;
-
-/**
- * Directly accessed with reflection by @TinyWebServer
- */
-public class WebApi {
-
-    public WebApi(){ }
-
-    public String time(HashMap qparms){
-        String json = "{\"now\":\""+ Calendar.getInstance().getTime().toString() + "\"}";
-        return json.toString();
-    }
+package androidhttpweb;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scanned once by @TinyWebServer; every public method(HashMap) or
+ * method(HashMap, HttpResponse) is served at /methodname. One instance serves
+ * all requests, so keep it thread-safe.
+ */
+public class WebApi {
+
+    public WebApi(){ }
+
+    //written as JSON by the server, {"now":"..."}
+    public Map<String, String> time(HashMap qparms, HttpResponse response){
+        return Collections.singletonMap("now", Calendar.getInstance().getTime().toString());
+    }
 }
\ No newline at end of file
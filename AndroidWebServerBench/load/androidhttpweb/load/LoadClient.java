@@ -0,0 +1,159 @@
+package androidhttpweb.load;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal blocking HTTP/1.1 client for the load test. Reads each response
+ * up to its Content-Length and throws the body away; reconnects when the
+ * server closes the connection.
+ */
+final class LoadClient {
+
+    private final InetSocketAddress address;
+    private final boolean keepAlive;
+    private final byte[] skip = new byte[16 * 1024];
+    private final StringBuilder line = new StringBuilder(128);
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private boolean closeAfterResponse;
+    long bytesRead;
+
+    LoadClient(InetSocketAddress address, boolean keepAlive) {
+        this.address = address;
+        this.keepAlive = keepAlive;
+    }
+
+    /** Sends the requests back to back on one connection, without waiting for responses. */
+    void send(String[] paths, int count) throws IOException {
+        if (socket == null) {
+            connect();
+        }
+        StringBuilder requests = new StringBuilder(count * 96);
+        for (int i = 0; i < count; i++) {
+            requests.append("GET ").append(paths[i]).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(address.getHostString()).append("\r\n");
+            if (!keepAlive) {
+                requests.append("Connection: close\r\n");
+            }
+            requests.append("\r\n");
+        }
+        out.write(requests.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    /** @return the status code of the next response */
+    int receive() throws IOException {
+        String status = readLine();
+        if (status == null) {
+            throw new IOException("connection closed before the response");
+        }
+        int code = parseStatus(status);
+        long length = -1;
+        String header;
+        while ((header = readLine()) != null && !header.isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = header.substring(0, colon).trim();
+            String value = header.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                closeAfterResponse = true;
+            }
+        }
+        if (header == null) {
+            throw new IOException("connection closed inside the headers");
+        }
+        if (length >= 0) {
+            skipBody(length);
+        } else {
+            skipToEnd();
+        }
+        return code;
+    }
+
+    /** Closes the connection if the server or {@code keepAlive} asked for it. */
+    void endOfBatch() {
+        if (closeAfterResponse || !keepAlive) {
+            close();
+        }
+    }
+
+    void close() {
+        closeAfterResponse = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address, 5000);
+        socket.setSoTimeout(30000);
+        in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        out = socket.getOutputStream();
+        closeAfterResponse = false;
+    }
+
+    private String readLine() throws IOException {
+        line.setLength(0);
+        int b;
+        while ((b = in.read()) != -1) {
+            bytesRead++;
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+
+    private static int parseStatus(String status) throws IOException {
+        int space = status.indexOf(' ');
+        if (!status.startsWith("HTTP/") || space < 0 || status.length() < space + 4) {
+            throw new IOException("bad status line: " + status);
+        }
+        try {
+            return Integer.parseInt(status.substring(space + 1, space + 4));
+        } catch (NumberFormatException er) {
+            throw new IOException("bad status line: " + status);
+        }
+    }
+
+    private void skipBody(long length) throws IOException {
+        while (length > 0) {
+            int n = in.read(skip, 0, (int) Math.min(skip.length, length));
+            if (n < 0) {
+                throw new IOException("connection closed inside the body");
+            }
+            bytesRead += n;
+            length -= n;
+        }
+    }
+
+    private void skipToEnd() throws IOException {
+        int n;
+        while ((n = in.read(skip)) > 0) {
+            bytesRead += n;
+        }
+        closeAfterResponse = true;
+    }
+}
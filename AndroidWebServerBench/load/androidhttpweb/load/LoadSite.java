@@ -0,0 +1,80 @@
+package androidhttpweb.load;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * The content served during a load test: a generated public_html tree and
+ * the WebApi registered under {@link #API_PREFIX}.
+ */
+final class LoadSite {
+
+    static final String API_PREFIX = "/load";
+    static final int SMALL_FILES = 100;
+    static final int SMALL_SIZE = 2 * 1024;
+    static final int LARGE_SIZE = 1024 * 1024;
+
+    private LoadSite() { }
+
+    /** Writes index.html, {@link #SMALL_FILES} small pages and one large image under {@code root}. */
+    static File generate(File root) throws IOException {
+        File small = new File(root, "small");
+        if (!small.isDirectory() && !small.mkdirs()) {
+            throw new IOException("cannot create " + small);
+        }
+        Random random = new Random(1);
+        write(new File(root, "index.html"), page("index", 512, random));
+        for (int i = 0; i < SMALL_FILES; i++) {
+            write(new File(small, "page" + i + ".html"), page("page " + i, SMALL_SIZE, random));
+        }
+        byte[] image = new byte[LARGE_SIZE];
+        random.nextBytes(image);
+        write(new File(root, "large.png"), image);
+        return root;
+    }
+
+    private static byte[] page(String title, int size, Random random) {
+        StringBuilder html = new StringBuilder(size + 64);
+        html.append("<!DOCTYPE html><html><head><title>").append(title).append("</title></head><body>");
+        while (html.length() < size - 16) {
+            html.append("<p>").append(Long.toHexString(random.nextLong())).append("</p>");
+        }
+        html.append("</body></html>");
+        return html.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Test WebApi: a trivial call and one with some CPU work. */
+    public static class Api {
+
+        public String echo(HashMap qparms) {
+            Object id = qparms != null ? qparms.get("id") : null;
+            return "{\"id\":\"" + id + "\"}";
+        }
+
+        public String work(HashMap qparms) {
+            int n = 1000;
+            Object value = qparms != null ? qparms.get("n") : null;
+            if (value != null) {
+                n = Integer.parseInt(value.toString());
+            }
+            long hash = 1125899906842597L;
+            for (int i = 0; i < n; i++) {
+                hash = 31 * hash + i;
+            }
+            return "{\"hash\":" + hash + "}";
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package androidhttpweb.load;
+
+import androidhttpweb.ConnectionExecutors;
+import androidhttpweb.ServerLog;
+import androidhttpweb.TinyWebServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Loopback load test. Starts {@link TinyWebServer} on 127.0.0.1 with a
+ * generated site and {@link LoadSite.Api}, drives it from a fixed number of
+ * client connections and prints throughput and latency percentiles.
+ * <p>
+ * With {@code rate=N} every connection sends on a fixed schedule and latency
+ * is measured from the time a request was due, not from when it could be
+ * sent, which corrects for coordinated omission: a stalled server is charged
+ * for every request it kept waiting. With {@code rate=0} (closed loop) the
+ * two measurements are the same.
+ * <p>
+ * Options are {@code key=value}; see {@link Options} for the defaults, e.g.
+ * {@code mode=nio connections=32 rate=2000 mix=small:70,api:30 pipeline=4}.
+ */
+public final class LoadTest {
+
+    static final String[] KINDS = {"small", "large", "api", "work"};
+
+    /** Command line settings. */
+    static final class Options {
+
+        String mode = "blocking";            // blocking or nio
+        String executor = "none";            // none, pool or virtual
+        int threads = 16;                    // pool size or virtual thread limit
+        int port = 9321;
+        int connections = 16;
+        int rate = 0;                        // total requests per second, 0 = as fast as possible
+        int duration = 10;                   // measured seconds
+        int warmup = 2;                      // seconds before measuring
+        boolean keepAlive = true;
+        int pipeline = 1;                    // requests written before reading responses
+        int[] mix = {60, 5, 30, 5};          // weights of KINDS
+        boolean accessLog = false;           // the server's access log, written to stderr
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException("expected key=value: " + arg);
+                }
+                String key = arg.substring(0, eq);
+                String value = arg.substring(eq + 1);
+                switch (key) {
+                    case "mode": o.mode = value; break;
+                    case "executor": o.executor = value; break;
+                    case "threads": o.threads = Integer.parseInt(value); break;
+                    case "port": o.port = Integer.parseInt(value); break;
+                    case "connections": o.connections = Integer.parseInt(value); break;
+                    case "rate": o.rate = Integer.parseInt(value); break;
+                    case "duration": o.duration = Integer.parseInt(value); break;
+                    case "warmup": o.warmup = Integer.parseInt(value); break;
+                    case "keepalive": o.keepAlive = Boolean.parseBoolean(value); break;
+                    case "pipeline": o.pipeline = Math.max(1, Integer.parseInt(value)); break;
+                    case "mix": o.mix = parseMix(value); break;
+                    case "accesslog": o.accessLog = Boolean.parseBoolean(value); break;
+                    default: throw new IllegalArgumentException("unknown option " + key);
+                }
+            }
+            return o;
+        }
+
+        private static int[] parseMix(String value) {
+            int[] weights = new int[KINDS.length];
+            for (String item : value.split(",")) {
+                String[] pair = item.split(":");
+                int kind = Arrays.asList(KINDS).indexOf(pair[0].trim());
+                if (kind < 0) {
+                    throw new IllegalArgumentException("unknown request kind " + pair[0] + ", use " + Arrays.toString(KINDS));
+                }
+                weights[kind] = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            }
+            return weights;
+        }
+
+        String describe() {
+            StringBuilder mixText = new StringBuilder();
+            for (int i = 0; i < KINDS.length; i++) {
+                if (mix[i] > 0) {
+                    mixText.append(mixText.length() > 0 ? "," : "").append(KINDS[i]).append(':').append(mix[i]);
+                }
+            }
+            return String.format(Locale.US, "mode=%s executor=%s connections=%d rate=%s keepalive=%s pipeline=%d mix=%s",
+                    mode, executor.equals("none") ? "none" : executor + ":" + threads, connections,
+                    rate > 0 ? rate + "/s" : "max", keepAlive, pipeline, mixText);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        File root = LoadSite.generate(Files.createTempDirectory("public_html").toFile());
+        startServer(options, root);
+        try {
+            Report report = run(options);
+            System.out.println(options.describe());
+            report.print(System.out);
+        } finally {
+            TinyWebServer.stopServer();
+        }
+        System.exit(0);
+    }
+
+    private static void startServer(Options options, File root) throws InterruptedException {
+        TinyWebServer.USE_NIO = options.mode.equals("nio");
+        TinyWebServer.ACCESS_LOG = options.accessLog;
+        ServerLog.setLevel(options.accessLog ? ServerLog.INFO : ServerLog.WARN);
+        if (options.executor.equals("pool")) {
+            TinyWebServer.setConnectionExecutor(ConnectionExecutors.boundedPool(options.threads, options.threads * 4));
+        } else if (options.executor.equals("virtual")) {
+            TinyWebServer.setConnectionExecutor(ConnectionExecutors.virtualThreads(options.threads));
+        }
+        TinyWebServer.registerWebApi(LoadSite.API_PREFIX, new LoadSite.Api());
+        TinyWebServer.startServer("127.0.0.1", options.port, root.getPath());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", options.port).close();
+                return;
+            } catch (IOException notYet) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("server did not start on port " + options.port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static Report run(final Options options) throws InterruptedException {
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", options.port);
+        final long start = System.nanoTime();
+        final long measureFrom = start + options.warmup * 1000000000L;
+        final long end = measureFrom + options.duration * 1000000000L;
+        // each connection runs its share of the rate, one batch per interval
+        final long interval = options.rate > 0
+                ? (long) (1e9 * options.connections * options.pipeline / options.rate) : 0;
+
+        List<Thread> threads = new ArrayList<>();
+        final List<Recorder> recorders = new ArrayList<>();
+        for (int c = 0; c < options.connections; c++) {
+            final Recorder recorder = new Recorder();
+            final int seed = c;
+            recorders.add(recorder);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // spread the first sends over one interval
+                    long offset = interval * seed / Math.max(1, options.connections);
+                    drive(options, new LoadClient(address, options.keepAlive), recorder,
+                            new Random(seed), start + offset, measureFrom, end, interval);
+                }
+            }, "load-" + c);
+            threads.add(worker);
+            worker.start();
+        }
+        for (Thread worker : threads) {
+            worker.join();
+        }
+        return new Report(recorders, (end - measureFrom) / 1e9, options.rate > 0);
+    }
+
+    private static void drive(Options options, LoadClient client, Recorder recorder, Random random,
+            long next, long measureFrom, long end, long interval) {
+        String[] paths = new String[options.pipeline];
+        int[] kinds = new int[options.pipeline];
+        int total = 0;
+        for (int weight : options.mix) {
+            total += weight;
+        }
+        while (true) {
+            long intended;
+            if (interval > 0) {
+                intended = next;
+                next += interval;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    sleepNanos(wait);
+                }
+            } else {
+                intended = System.nanoTime();
+            }
+            if (intended >= end) {
+                break;
+            }
+            for (int i = 0; i < options.pipeline; i++) {
+                kinds[i] = pick(options.mix, total, random);
+                paths[i] = path(kinds[i], random);
+            }
+            long sent = System.nanoTime();
+            int received = 0;
+            try {
+                client.send(paths, options.pipeline);
+                for (; received < options.pipeline; received++) {
+                    int status = client.receive();
+                    long done = System.nanoTime();
+                    if (intended >= measureFrom) {
+                        recorder.record(kinds[received], status, done - intended, done - sent);
+                    }
+                }
+                client.endOfBatch();
+            } catch (IOException er) {
+                if (intended >= measureFrom) {
+                    recorder.ioErrors += options.pipeline - received;
+                }
+                client.close();
+            }
+        }
+        client.close();
+        recorder.bytesRead = client.bytesRead;
+    }
+
+    private static int pick(int[] mix, int total, Random random) {
+        int r = random.nextInt(total);
+        for (int kind = 0; kind < mix.length; kind++) {
+            r -= mix[kind];
+            if (r < 0) {
+                return kind;
+            }
+        }
+        return 0;
+    }
+
+    private static String path(int kind, Random random) {
+        switch (kind) {
+            case 0: return "/small/page" + random.nextInt(LoadSite.SMALL_FILES) + ".html";
+            case 1: return "/large.png";
+            case 2: return LoadSite.API_PREFIX + "/echo?id=" + random.nextInt(1000);
+            default: return LoadSite.API_PREFIX + "/work?n=20000";
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException er) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Samples of one client connection; only its own thread writes to it. */
+    static final class Recorder {
+
+        long[] corrected = new long[4096];
+        long[] service = new long[4096];
+        int count;
+        final long[] byKind = new long[KINDS.length];
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        long ioErrors;
+        long bytesRead;
+
+        void record(int kind, int status, long correctedNanos, long serviceNanos) {
+            if (count == corrected.length) {
+                corrected = Arrays.copyOf(corrected, count * 2);
+                service = Arrays.copyOf(service, count * 2);
+            }
+            corrected[count] = correctedNanos;
+            service[count] = serviceNanos;
+            count++;
+            byKind[kind]++;
+            Long seen = statuses.get(status);
+            statuses.put(status, seen == null ? 1 : seen + 1);
+        }
+    }
+
+    /** Merged results of all connections. */
+    static final class Report {
+
+        final long[] corrected;
+        final long[] service;
+        final long[] byKind = new long[KINDS.length];
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        long ioErrors;
+        long bytesRead;
+        final double seconds;
+        final boolean fixedRate;
+
+        Report(List<Recorder> recorders, double seconds, boolean fixedRate) {
+            this.seconds = seconds;
+            this.fixedRate = fixedRate;
+            int total = 0;
+            for (Recorder r : recorders) {
+                total += r.count;
+            }
+            corrected = new long[total];
+            service = new long[total];
+            int at = 0;
+            for (Recorder r : recorders) {
+                System.arraycopy(r.corrected, 0, corrected, at, r.count);
+                System.arraycopy(r.service, 0, service, at, r.count);
+                at += r.count;
+                for (int k = 0; k < KINDS.length; k++) {
+                    byKind[k] += r.byKind[k];
+                }
+                for (Map.Entry<Integer, Long> e : r.statuses.entrySet()) {
+                    Long seen = statuses.get(e.getKey());
+                    statuses.put(e.getKey(), seen == null ? e.getValue() : seen + e.getValue());
+                }
+                ioErrors += r.ioErrors;
+                bytesRead += r.bytesRead;
+            }
+            Arrays.sort(corrected);
+            Arrays.sort(service);
+        }
+
+        void print(java.io.PrintStream out) {
+            long requests = corrected.length;
+            out.printf(Locale.US, "requests %d in %.1f s: %.1f req/s, %.1f MB/s read%n",
+                    requests, seconds, requests / seconds, bytesRead / seconds / (1024 * 1024));
+            out.println("latency ms           p50      p90      p99    p99.9      max");
+            line(out, fixedRate ? "corrected" : "closed loop", corrected);
+            if (fixedRate) {
+                line(out, "service time", service);
+            }
+            Map<String, Long> kinds = new LinkedHashMap<>();
+            for (int k = 0; k < KINDS.length; k++) {
+                if (byKind[k] > 0) {
+                    kinds.put(KINDS[k], byKind[k]);
+                }
+            }
+            long errors = ioErrors;
+            for (Map.Entry<Integer, Long> e : statuses.entrySet()) {
+                if (e.getKey() >= 400) {
+                    errors += e.getValue();
+                }
+            }
+            out.println("requests by kind " + kinds + ", by status " + statuses);
+            out.println("errors " + errors + " (io " + ioErrors + ")");
+        }
+
+        private static void line(java.io.PrintStream out, String label, long[] sorted) {
+            out.printf(Locale.US, "%-14s %8.2f %8.2f %8.2f %8.2f %8.2f%n", label,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0);
+        }
+
+        static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+        }
+    }
+}
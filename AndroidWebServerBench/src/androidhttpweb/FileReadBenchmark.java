@@ -0,0 +1,78 @@
+package androidhttpweb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@link TinyWebServer#readFile} and {@code readImageFiles} across file sizes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileReadBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private TinyWebServer server;
+    private File text;
+    private File image;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new TinyWebServer((InetAddress) null, 0);
+        byte[] data = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(26));
+        }
+        text = write("bench", ".html", data);
+        random.nextBytes(data);
+        image = write("bench", ".png", data);
+    }
+
+    private static File write(String prefix, String suffix, byte[] data) throws IOException {
+        File file = File.createTempFile(prefix, suffix);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        text.delete();
+        image.delete();
+    }
+
+    @Benchmark
+    public String readFile() {
+        return TinyWebServer.readFile(text.getPath());
+    }
+
+    @Benchmark
+    public byte[] readImageFiles() {
+        return server.readImageFiles(image.getPath(), "image/png");
+    }
+}
@@ -0,0 +1,52 @@
+package androidhttpweb;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** {@link TinyWebServer#splitQuery} and {@link TinyWebServer#getContentType}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryAndContentTypeBenchmark {
+
+    private final String shortQuery = "id=42&name=sensor";
+    private final String longQuery = "q=temperature%20and%20humidity&from=2024-01-01T00%3A00%3A00Z"
+            + "&to=2024-01-31T23%3A59%3A59Z&page=3&size=50&sort=time&order=desc&fields=a,b,c&flag";
+
+    @Benchmark
+    public HashMap<String, String> splitShortQuery() {
+        return TinyWebServer.splitQuery(shortQuery);
+    }
+
+    @Benchmark
+    public HashMap<String, String> splitLongQuery() {
+        return TinyWebServer.splitQuery(longQuery);
+    }
+
+    @Benchmark
+    public String contentTypeHtml() {
+        return TinyWebServer.getContentType("index.html");
+    }
+
+    @Benchmark
+    public String contentTypeImage() {
+        return TinyWebServer.getContentType("/img/photos/holiday.jpg");
+    }
+
+    @Benchmark
+    public String contentTypeApi() {
+        return TinyWebServer.getContentType("time");
+    }
+}
@@ -0,0 +1,96 @@
+package androidhttpweb;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request header parsing as {@link TinyWebServer.EchoThread#run} feeds it:
+ * a whole browser request in one read, the same request split over small
+ * reads, and a batch of pipelined requests.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+    static final String BROWSER_GET = "GET /css/style.css?v=12 HTTP/1.1\r\n"
+            + "Host: 192.168.1.20:9000\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 13) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Mobile Safari/537.36\r\n"
+            + "Accept: text/css,*/*;q=0.1\r\n"
+            + "Referer: http://192.168.1.20:9000/\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "If-None-Match: \"1f2e-18c4a3b7d10\"\r\n"
+            + "\r\n";
+
+    static final String FORM_POST = "POST /api/save HTTP/1.1\r\n"
+            + "Host: 192.168.1.20:9000\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: 26\r\n"
+            + "\r\n"
+            + "name=sensor&value=21.5&x=1";
+
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private byte[] get;
+    private byte[] post;
+    private byte[] pipelined;
+
+    @Setup
+    public void setup() {
+        get = BROWSER_GET.getBytes(HttpRequest.UTF_8);
+        post = FORM_POST.getBytes(HttpRequest.UTF_8);
+        StringBuilder batch = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            batch.append(BROWSER_GET);
+        }
+        pipelined = batch.toString().getBytes(HttpRequest.UTF_8);
+    }
+
+    @Benchmark
+    public HttpRequest singleRead() {
+        parser.reset();
+        parser.parse(get, 0, get.length);
+        return parser.getRequest();
+    }
+
+    @Benchmark
+    public HttpRequest splitReads() {
+        parser.reset();
+        for (int off = 0; off < get.length; off += 64) {
+            parser.parse(get, off, Math.min(64, get.length - off));
+        }
+        return parser.getRequest();
+    }
+
+    @Benchmark
+    public HttpRequest postWithBody() {
+        parser.reset();
+        parser.parse(post, 0, post.length);
+        return parser.getRequest();
+    }
+
+    @Benchmark
+    public int pipelinedBatch() {
+        int off = 0;
+        int requests = 0;
+        while (off < pipelined.length) {
+            parser.reset();
+            off += parser.parse(pipelined, off, pipelined.length - off);
+            requests++;
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,104 @@
+package androidhttpweb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header writing with {@code constructHeader}/{@code constructHeaderImage}
+ * into memory, and WebApi dispatch through {@code getResultByName}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    /** Trivial API so dispatch cost is not hidden by the method body. */
+    public static class BenchApi {
+
+        public String echo(HashMap qparms) {
+            return "ok";
+        }
+
+        public String status(HashMap qparms, HttpResponse response) {
+            response.setContentType("application/json");
+            return "{\"up\":true}";
+        }
+    }
+
+    private TinyWebServer server;
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final HttpResponse response = new HttpResponse();
+    private final HashMap<String, String> qparms = new HashMap<>();
+    private HttpRequest request;
+    private String smallBody;
+    private byte[] image;
+
+    @Setup
+    public void setup() throws IOException {
+        // unbound instance, only its response helpers are used
+        server = new TinyWebServer((InetAddress) null, 0);
+        TinyWebServer.setWebApiClassname(TinyWebServer.DEFAULT_WEB_API_CLASSNAME);
+        TinyWebServer.registerWebApi("/bench", new BenchApi());
+        HttpRequestParser parser = new HttpRequestParser();
+        byte[] get = RequestParserBenchmark.BROWSER_GET.getBytes(HttpRequest.UTF_8);
+        parser.parse(get, 0, get.length);
+        request = parser.getRequest();
+        smallBody = "{\"time\":\"2024-01-01 12:00:00\",\"battery\":87}";
+        image = new byte[32 * 1024];
+        qparms.put("id", "42");
+    }
+
+    @Benchmark
+    public int constructHeaderSmallText() {
+        bytes.reset();
+        response.reset();
+        response.contentType = "application/json";
+        server.constructHeader(out, request, response, smallBody);
+        return bytes.size();
+    }
+
+    @Benchmark
+    public int constructHeaderImage() {
+        bytes.reset();
+        response.reset();
+        response.contentType = "image/png";
+        server.constructHeaderImage(out, response, image.length, image);
+        return bytes.size();
+    }
+
+    @Benchmark
+    public String dispatchPrefixedRoute() {
+        response.reset();
+        return server.getResultByName("/bench/echo", qparms, response);
+    }
+
+    @Benchmark
+    public String dispatchWithResponse() {
+        response.reset();
+        return server.getResultByName("/bench/status", qparms, response);
+    }
+
+    @Benchmark
+    public String dispatchUnmatched() {
+        response.reset();
+        return server.getResultByName("/bench/missing", qparms, response);
+    }
+}